@@ -26,5 +26,9 @@ public class Application extends android.app.Application {
     public void onCreate() {
         super.onCreate();
         Logger.setDebugLogging(getResources().getBoolean(R.bool.debug_output));
+        HttpClient.init(this);
+        HttpCache.init(getCacheDir());
+        VerificationCache.init(getFilesDir());
+        DigestProvider.init(this);
     }
 }
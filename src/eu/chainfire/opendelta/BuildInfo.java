@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.LruCache;
+import android.util.MalformedJsonException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A build as described by the device json, parsed in one pass.
+ * The json of a commit never changes, so what was parsed is kept per sha
+ * for the changelog, which looks at the same commits on every check.
+ */
+class BuildInfo {
+    private static final int CACHE_SIZE = 32;
+
+    private static final LruCache<String, BuildInfo> sCache = new LruCache<>(CACHE_SIZE);
+
+    /** file name, without any path */
+    final String filename;
+    /** yyyyMMdd from the file name, -1 if it doesn't have one */
+    final long date;
+    /** android version from the file name, null if it doesn't have one */
+    final String version;
+    /** download and sum locations overriding the configured ones, or null */
+    final String url;
+    final String sha256url;
+    /** key=value properties of a streamable payload, null if not streamable */
+    final List<String> payload;
+    /** size of the file, -1 if not given */
+    final long size;
+    /** other locations of the same file, may be empty */
+    final List<String> mirrors;
+    /** tree hash that can be checked on all cores, or null */
+    final TreeDigest tree;
+
+    private BuildInfo(String filename, String url, String sha256url,
+            List<String> payload, long size, List<String> mirrors, TreeDigest tree) {
+        this.filename = new File(filename).getName();
+        this.date = parseDate(this.filename);
+        final String[] parts = this.filename.split("-", 3);
+        this.version = parts.length > 1 ? parts[1] : null;
+        this.url = url;
+        this.sha256url = sha256url;
+        this.payload = payload != null ? Collections.unmodifiableList(payload) : null;
+        this.size = size;
+        this.mirrors = Collections.unmodifiableList(mirrors);
+        this.tree = tree;
+    }
+
+    /**
+     * @return the yyyyMMdd date of a build file name, -1 if it is malformed
+     */
+    static long parseDate(String filename) {
+        try {
+            return Long.parseLong(filename.split("-")[4].substring(0, 8));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Fetches and parses the device json
+     * @param sha commit the url points to, or null if it points to a branch
+     *            and may change
+     * @return the build, null if the json doesn't list any
+     */
+    static BuildInfo fetch(String url, String sha, CancellationToken token)
+            throws IOException {
+        if (sha != null) {
+            final BuildInfo cached = sCache.get(sha);
+            if (cached != null) return cached;
+        }
+        final BuildInfo info = Download.fetch(url, Download.METADATA_MAX_SIZE, token,
+                BuildInfo::parse);
+        if (sha != null && info != null) sCache.put(sha, info);
+        return info;
+    }
+
+    /**
+     * Reads {"response": [{"filename": ..}, ..]}. The device json lists one
+     * build, if there are more the first one is returned and the rest is
+     * skipped, like the changelog always did.
+     * @throws MalformedJsonException if the json isn't what is expected
+     */
+    static BuildInfo parse(InputStream is) throws IOException {
+        final JsonReader reader = new JsonReader(
+                new InputStreamReader(is, StandardCharsets.UTF_8));
+        try {
+            BuildInfo info = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!"response".equals(reader.nextName())) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (info != null || reader.peek() == JsonToken.NULL) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    info = parseBuild(reader);
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+            return info;
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new MalformedJsonException(e.getMessage());
+        }
+    }
+
+    private static BuildInfo parseBuild(JsonReader reader) throws IOException {
+        String filename = null;
+        String url = null;
+        String sha256url = null;
+        List<String> payload = null;
+        long size = -1;
+        final List<String> mirrors = new ArrayList<>();
+        TreeDigest tree = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "filename":
+                    filename = reader.nextString();
+                    break;
+                case "url":
+                    url = reader.nextString();
+                    break;
+                case "sha256url":
+                    sha256url = reader.nextString();
+                    break;
+                case "size":
+                    size = reader.nextLong();
+                    break;
+                case "payload":
+                    payload = parsePayload(reader);
+                    break;
+                case "mirrors":
+                    reader.beginArray();
+                    while (reader.hasNext()) mirrors.add(reader.nextString());
+                    reader.endArray();
+                    break;
+                case "sha256tree":
+                    tree = TreeDigest.parse(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (filename == null)
+            throw new MalformedJsonException("Build without a filename");
+        return new BuildInfo(filename, url, sha256url, payload, size, mirrors, tree);
+    }
+
+    private static List<String> parsePayload(JsonReader reader) throws IOException {
+        final List<String> payload = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String key = reader.nextName();
+                // numbers are kept as they are written
+                final String value;
+                if (reader.peek() == JsonToken.BOOLEAN) {
+                    value = Boolean.toString(reader.nextBoolean());
+                } else if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    value = "null";
+                } else {
+                    value = reader.nextString();
+                }
+                payload.add(key + "=" + value);
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+        return payload;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shared by the stages of one update run to stop them all at once. Whatever
+ * blocks, like a connection or a stream, registers a callback closing it,
+ * so a blocked read fails right away instead of after its timeout.
+ * A token can only be cancelled once, every run gets a new one.
+ */
+class CancellationToken {
+    static class CancelledException extends IOException {
+        CancelledException() {
+            super("Cancelled");
+        }
+    }
+
+    /**
+     * Removes the callback again once the operation completed
+     */
+    interface Registration extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final List<Runnable> mCallbacks = new ArrayList<>();
+    private boolean mCancelled;
+
+    synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    void throwIfCancelled() throws CancelledException {
+        if (isCancelled()) throw new CancelledException();
+    }
+
+    /**
+     * Runs the callback when the token is cancelled, right away if it
+     * already is
+     */
+    Registration register(Runnable onCancel) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mCallbacks.add(onCancel);
+                return () -> {
+                    synchronized (CancellationToken.this) {
+                        mCallbacks.remove(onCancel);
+                    }
+                };
+            }
+        }
+        onCancel.run();
+        return () -> {};
+    }
+
+    /**
+     * Marks the token cancelled right away. The callbacks run on their own
+     * thread, closing a TLS connection may write to the network and this is
+     * usually called from the main thread.
+     */
+    void cancel() {
+        final List<Runnable> callbacks;
+        synchronized (this) {
+            if (mCancelled) return;
+            mCancelled = true;
+            callbacks = new ArrayList<>(mCallbacks);
+            mCallbacks.clear();
+        }
+        if (callbacks.isEmpty()) return;
+        new Thread(() -> {
+            for (Runnable callback : callbacks) {
+                try {
+                    callback.run();
+                } catch (Exception e) {
+                    Logger.ex(e);
+                }
+            }
+        }, "OpenDelta-cancel").start();
+    }
+}
@@ -36,12 +36,12 @@ import android.widget.TextView;
 
 import androidx.preference.PreferenceManager;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Locale;
 
 import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 public class ChangelogActivity extends BaseActivity {
 
@@ -72,8 +72,7 @@ public class ChangelogActivity extends BaseActivity {
 
         // fetch last 20 changelogs / until we reach current and display
         new Handler(ht.getLooper()).post(() -> {
-            final Long currDate = Long.parseLong(
-                    config.getFilenameBase().split("-")[4].substring(0, 8));
+            final long currDate = BuildInfo.parseDate(config.getFilenameBase());
             // unformatted device.json URL 
             final String jsURL = config.getUrlBaseJson().replace(
                     config.getUrlBranchName(), "%s");
@@ -95,7 +94,9 @@ public class ChangelogActivity extends BaseActivity {
                 boolean reached = false;
                 int reachedI = 0;
 
-                final String jsonStr = Download.asString(config.getUrlAPIHistory());
+                // can wait for the API rate limit, the cache is shown meanwhile
+                final String jsonStr = Download.asString(config.getUrlAPIHistory(),
+                        null, false);
                 JSONArray jArr = null;
                 if (jsonStr != null && !jsonStr.isEmpty()) {
                     jArr = new JSONArray(jsonStr);
@@ -154,11 +155,13 @@ public class ChangelogActivity extends BaseActivity {
                             continue;
                         }
                         final String otaJsonURL = String.format(Locale.ENGLISH, jsURL, currSha);
-                        final JSONObject otaJson = new JSONObject(Download.asString(otaJsonURL));
-                        final String filename = otaJson.getJSONArray("response")
-                                .getJSONObject(0).getString("filename");
-                        final Long fileDate = Long.parseLong(
-                                filename.split("-")[4].substring(0, 8));
+                        final BuildInfo build = BuildInfo.fetch(otaJsonURL, currSha, null);
+                        if (build == null) {
+                            Logger.d("No build listed at " + otaJsonURL);
+                            error = true;
+                            break;
+                        }
+                        final Long fileDate = build.date;
                         // fetch and add the changelog of that commit sha
                         final String changelogURL = String.format(Locale.ENGLISH, clURL, currSha);
                         final String currChangelog = Download.asString(changelogURL);
@@ -176,7 +179,7 @@ public class ChangelogActivity extends BaseActivity {
                         shas.add(i, currSha);
                         dates.add(i, fileDateStr);
                         logs.add(i, currChangelog);
-                    } catch (JSONException e) {
+                    } catch (JSONException | IOException e) {
                         Logger.ex(e);
                         error = true;
                         break;
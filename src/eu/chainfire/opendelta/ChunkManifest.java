@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Optional list of SHA-256 sums of fixed size chunks of a build, published
+ * next to its .sha256sum as .chunks. The first line holds the chunk size in
+ * bytes, every following line the sum of one chunk, in order. Only the last
+ * chunk may be smaller.
+ * Allows verifying a download in independent pieces and re-fetching only the
+ * pieces that turn out to be corrupt.
+ */
+class ChunkManifest {
+    private static final String SUM_SUFFIX = ".sha256sum";
+    private static final String CHUNKS_SUFFIX = ".chunks";
+
+    private final long mChunkSize;
+    private final String[] mSums;
+    // one read buffer per verifying thread, not per chunk
+    private final ThreadLocal<ByteBuffer> mBuffers;
+
+    private ChunkManifest(long chunkSize, String[] sums) {
+        mChunkSize = chunkSize;
+        mSums = sums;
+        mBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(
+                (int) Math.min(chunkSize, FileVerifier.BLOCK_SIZE)));
+    }
+
+    /**
+     * @return url of the manifest belonging to the given sha256sum url
+     */
+    static String getUrl(String sumUrl) {
+        final int index = sumUrl.lastIndexOf(SUM_SUFFIX);
+        if (index < 0) return sumUrl + CHUNKS_SUFFIX;
+        return sumUrl.substring(0, index) + CHUNKS_SUFFIX
+                + sumUrl.substring(index + SUM_SUFFIX.length());
+    }
+
+    /**
+     * @param token optional, cancels the request
+     * @return the manifest, or null if the server doesn't provide a valid one
+     */
+    static ChunkManifest fetch(String url, CancellationToken token) {
+        final String data = Download.asString(url, token);
+        if (data == null || data.isEmpty()) return null;
+        try {
+            return parse(data);
+        } catch (IllegalArgumentException e) {
+            Logger.ex(e);
+            return null;
+        }
+    }
+
+    static ChunkManifest parse(String data) {
+        final String[] lines = data.trim().split("\\s*\n\\s*");
+        if (lines.length < 2)
+            throw new IllegalArgumentException("Chunk manifest without chunks");
+        final long chunkSize = Long.parseLong(lines[0]);
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        String[] sums = new String[lines.length - 1];
+        for (int i = 0; i < sums.length; i++) {
+            // allow for the sha256sum format, "<sum>  <name>"
+            final String sum = lines[i + 1].split("\\s+")[0].toLowerCase(Locale.ENGLISH);
+            if (!sum.matches("[0-9a-f]{64}"))
+                throw new IllegalArgumentException("Invalid chunk sum at line " + (i + 2));
+            sums[i] = sum;
+        }
+        return new ChunkManifest(chunkSize, sums);
+    }
+
+    long getChunkSize() {
+        return mChunkSize;
+    }
+
+    int getCount() {
+        return mSums.length;
+    }
+
+    long getStart(int index) {
+        return index * mChunkSize;
+    }
+
+    long getEnd(int index, long total) {
+        return Math.min(total, (index + 1) * mChunkSize);
+    }
+
+    /**
+     * @return whether this manifest describes a file of the given size
+     */
+    boolean matches(long total) {
+        return total > 0 && (total + mChunkSize - 1) / mChunkSize == mSums.length;
+    }
+
+    /**
+     * Reads back and checks a single chunk
+     */
+    boolean verify(FileChannel channel, int index, long total) throws IOException {
+        final MessageDigest digest = FileVerifier.newSha256();
+        FileVerifier.update(channel, getStart(index), getEnd(index, total), digest,
+                mBuffers.get(), null, null);
+        return Download.digestToHexString(digest).equals(mSums[index]);
+    }
+
+    /**
+     * Checks the given chunks, all at the same time
+     * @return the indices of the chunks that don't match
+     */
+    List<Integer> findCorrupt(FileChannel channel, Collection<Integer> indices, long total,
+            ExecutorService executor) throws IOException {
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (int index : indices)
+            futures.add(executor.submit(() -> verify(channel, index, total)));
+        List<Integer> corrupt = new ArrayList<>();
+        int i = 0;
+        for (int index : indices) {
+            try {
+                if (!futures.get(i++).get()) corrupt.add(index);
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException(e);
+            }
+        }
+        return corrupt;
+    }
+}
@@ -61,6 +61,7 @@ public class Config {
     private final String url_base_update;
     private final String url_base;
     private final String url_base_sum;
+    private final List<String> url_base_mirrors;
     private final String url_base_suffix;
     private final boolean support_ab_perf_mode;
     private final boolean use_twrp;
@@ -70,6 +71,11 @@ public class Config {
     private final String url_api_history;
     private final String url_cert_json;
     private final String android_version;
+    private final int download_connections;
+    private final long download_sync_interval_bytes;
+    private final long download_sync_interval_ms;
+    private final int download_retry_attempts;
+    private final long download_limit_user;
 
     private Config(Context context) {
         prefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -95,6 +101,10 @@ public class Config {
                 res.getString(R.string.url_base_full), property_device);
         url_base_sum = String.format(
                 res.getString(R.string.url_base_full_sum), property_device);
+        List<String> mirrors = new ArrayList<>();
+        for (String mirror : res.getStringArray(R.array.url_base_full_mirrors))
+            mirrors.add(String.format(mirror, property_device));
+        url_base_mirrors = Collections.unmodifiableList(mirrors);
         url_base_suffix = res.getString(R.string.url_base_suffix);
         support_ab_perf_mode = res.getBoolean(R.bool.support_ab_perf_mode);
         use_twrp = res.getBoolean(R.bool.use_twrp);
@@ -112,6 +122,16 @@ public class Config {
                 res.getString(R.string.android_version));
         filename_base_prefix = String.format(Locale.ENGLISH,
                 res.getString(R.string.filename_base), android_version);
+        download_connections = Math.max(1,
+                res.getInteger(R.integer.download_connections));
+        download_sync_interval_bytes = Math.max(1,
+                res.getInteger(R.integer.download_sync_interval_mb)) * 1024L * 1024L;
+        download_sync_interval_ms = Math.max(250,
+                res.getInteger(R.integer.download_sync_interval_ms));
+        download_retry_attempts = Math.max(0,
+                res.getInteger(R.integer.download_retry_attempts));
+        download_limit_user = Math.max(0,
+                res.getInteger(R.integer.download_limit_user)) * 1024L;
 
         Logger.d("property_version: %s", property_version);
         Logger.d("property_device: %s", property_device);
@@ -122,11 +142,17 @@ public class Config {
         Logger.d("url_base_update: %s", url_base_update);
         Logger.d("url_base: %s", url_base);
         Logger.d("url_base_sum: %s", url_base_sum);
+        Logger.d("url_base_mirrors: %s", url_base_mirrors);
         Logger.d("url_branch_name: %s", url_branch_name);
         Logger.d("url_base_json: %s", url_base_json);
         Logger.d("url_api_history: %s", url_api_history);
         Logger.d("url_cert_json: %s", url_cert_json);
         Logger.d("use_twrp: %d", use_twrp ? 1 : 0);
+        Logger.d("download_connections: %d", download_connections);
+        Logger.d("download_sync_interval_bytes: %d", download_sync_interval_bytes);
+        Logger.d("download_sync_interval_ms: %d", download_sync_interval_ms);
+        Logger.d("download_retry_attempts: %d", download_retry_attempts);
+        Logger.d("download_limit_user: %d", download_limit_user);
     }
 
     public String getFilenameBase() {
@@ -149,6 +175,10 @@ public class Config {
         return url_base;
     }
 
+    public List<String> getUrlBaseMirrors() {
+        return url_base_mirrors;
+    }
+
     public String getUrlBaseSum() {
         return url_base_sum;
     }
@@ -257,6 +287,29 @@ public class Config {
         return android_version;
     }
 
+    public int getDownloadConnections() {
+        return download_connections;
+    }
+
+    public long getDownloadSyncIntervalBytes() {
+        return download_sync_interval_bytes;
+    }
+
+    public long getDownloadSyncIntervalMs() {
+        return download_sync_interval_ms;
+    }
+
+    public int getDownloadRetryAttempts() {
+        return download_retry_attempts;
+    }
+
+    /**
+     * @return bytes per second, 0 for no limit
+     */
+    public long getDownloadLimitUser() {
+        return download_limit_user;
+    }
+
     public static boolean isABDevice() {
         return SystemProperties.getBoolean(PROP_AB_DEVICE, false);
     }
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Process;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Picks the SHA-256 implementation used for all hashing in the app. Which
+ * provider makes use of the CPU's SHA instructions differs per device, so
+ * the available ones are timed on a fixed buffer once per build fingerprint
+ * and the fastest is used from then on. Until the first run finished the
+ * platform's default is used.
+ */
+class DigestProvider {
+    private static final String ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int ROUNDS = 16;
+
+    private static final String PREF_FINGERPRINT = "digest_provider_fingerprint";
+    private static final String PREF_PROVIDER = "digest_provider";
+    private static final String PREF_RESULTS = "digest_provider_results";
+
+    private static volatile String sProvider;
+    // provider -> MB/s
+    private static volatile Map<String, Float> sResults = new LinkedHashMap<>();
+
+    /**
+     * Takes the result for this build, or times the providers in the
+     * background if there is none
+     */
+    static void init(Context context) {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (Build.FINGERPRINT.equals(prefs.getString(PREF_FINGERPRINT, null))) {
+            sResults = parseResults(prefs.getString(PREF_RESULTS, ""));
+            sProvider = prefs.getString(PREF_PROVIDER, null);
+            Logger.d("DigestProvider: " + sProvider);
+            return;
+        }
+        final Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            benchmark(prefs);
+        }, "OpenDelta-digest");
+        thread.start();
+    }
+
+    /**
+     * @return a SHA-256 digest of the fastest provider
+     */
+    static MessageDigest newSha256() throws NoSuchAlgorithmException {
+        final String provider = sProvider;
+        if (provider != null) {
+            try {
+                return MessageDigest.getInstance(ALGORITHM, provider);
+            } catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+                Logger.ex(e);
+                sProvider = null;
+            }
+        }
+        return MessageDigest.getInstance(ALGORITHM);
+    }
+
+    private static void benchmark(SharedPreferences prefs) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        for (int i = 0; i < BUFFER_SIZE; i++) buffer.put(i, (byte) i);
+        final Map<String, Float> results = new LinkedHashMap<>();
+        String fastest = null;
+        float fastestRate = 0;
+        for (Provider provider : Security.getProviders("MessageDigest." + ALGORITHM)) {
+            final float rate;
+            try {
+                rate = time(MessageDigest.getInstance(ALGORITHM, provider), buffer);
+            } catch (NoSuchAlgorithmException | RuntimeException e) {
+                // some are listed but refuse to be used by apps
+                Logger.d("DigestProvider: %s unusable: %s", provider.getName(), e);
+                continue;
+            }
+            results.put(provider.getName(), rate);
+            if (rate > fastestRate) {
+                fastest = provider.getName();
+                fastestRate = rate;
+            }
+        }
+        sResults = results;
+        sProvider = fastest;
+        Logger.d("DigestProvider: %s of %s", fastest, formatResults(results));
+        prefs.edit()
+                .putString(PREF_FINGERPRINT, Build.FINGERPRINT)
+                .putString(PREF_PROVIDER, fastest)
+                .putString(PREF_RESULTS, formatResults(results))
+                .apply();
+    }
+
+    /**
+     * @return MB/s, after a round to warm up
+     */
+    private static float time(MessageDigest digest, ByteBuffer buffer) {
+        hash(digest, buffer);
+        final long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) hash(digest, buffer);
+        final long nanos = Math.max(1, System.nanoTime() - start);
+        return (float) ROUNDS * BUFFER_SIZE * 1000000000f / nanos / 1048576f;
+    }
+
+    private static void hash(MessageDigest digest, ByteBuffer buffer) {
+        buffer.rewind();
+        digest.update(buffer);
+        digest.digest();
+    }
+
+    private static String formatResults(Map<String, Float> results) {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Float> entry : results.entrySet()) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(entry.getKey()).append('=')
+                    .append(String.format(Locale.ENGLISH, "%.1f", entry.getValue()));
+        }
+        return sb.toString();
+    }
+
+    private static Map<String, Float> parseResults(String str) {
+        final Map<String, Float> results = new LinkedHashMap<>();
+        for (String result : str.split(",")) {
+            final int index = result.lastIndexOf('=');
+            if (index <= 0) continue;
+            try {
+                results.put(result.substring(0, index),
+                        Float.parseFloat(result.substring(index + 1)));
+            } catch (NumberFormatException e) {
+                // dropped
+            }
+        }
+        return results;
+    }
+
+    static void dump(PrintWriter pw) {
+        final Map<String, Float> results = sResults;
+        if (results.isEmpty()) {
+            pw.println("  not measured yet, using the default");
+            return;
+        }
+        for (Map.Entry<String, Float> entry : results.entrySet()) {
+            pw.println(String.format(Locale.ENGLISH, "  %s: %.1f MB/s%s", entry.getKey(),
+                    entry.getValue(), entry.getKey().equals(sProvider) ? " (used)" : ""));
+        }
+    }
+}
@@ -29,24 +29,50 @@ import androidx.preference.PreferenceManager;
 
 import eu.chainfire.opendelta.UpdateService.ProgressListener;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
-import java.net.URL;
+import java.net.HttpURLConnection;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Download {
     private static final int HTTP_READ_TIMEOUT = 30000;
     private static final int HTTP_CONNECTION_TIMEOUT = 30000;
-    private static final String DIGEST_ALGO = "SHA-256";
+    private static final long MIN_SEGMENT_SIZE = 32L * 1024L * 1024L;
+    private static final long HASH_CATCH_UP_SIZE = 16L * 1024L * 1024L;
+    private static final int METADATA_BUFFER_SIZE = 16 * 1024;
+    // start of the file fetched from every mirror to rank them
+    private static final long PROBE_SIZE = 256L * 1024L;
+    // how often a segment compares its mirror with the others
+    private static final long SLOW_CHECK_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    // more than any json, changelog or sum we fetch should ever be
+    public static final long METADATA_MAX_SIZE = 4L * 1024L * 1024L;
 
     public static final int STATUS_DOWNLOAD_STOP = 0;
     public static final int STATUS_DOWNLOAD_PAUSE = 1;
@@ -61,16 +87,90 @@ public class Download {
     private final File mFile;
     private final String mMatchSUM;
     private final UpdateService mUpdateService;
+    private ChunkManifest mChunkManifest;
+    private long mMinSegmentSize = MIN_SEGMENT_SIZE;
+    private List<String> mMirrorUrls = Collections.emptyList();
+    private MirrorPool mMirrors;
+    private CancellationToken mToken = new CancellationToken();
+    private final RateLimiter mRateLimiter = new RateLimiter();
     private boolean mIsRunning = false;
+    private boolean mRemoteChanged = false;
+    private Exception mFailure;
     private int mStatus = -1;
 
     private final State mState;
     private final SharedPreferences mPrefs;
 
+    private static class RangeIgnoredException extends IOException {
+        RangeIgnoredException() {
+            super("Server ignored the range request");
+        }
+    }
+
+    private static class RemoteChangedException extends IOException {
+        RemoteChangedException() {
+            super("File on the server changed");
+        }
+    }
+
+    /**
+     * A mirror failed to deliver a segment, it may be taken from another one
+     */
+    private static class MirrorException extends IOException {
+        MirrorException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
     public interface ApkDownloadListener {
         default void onFinish(boolean success) {};
     }
 
+    /**
+     * Receives the body of a response as it arrives
+     */
+    public interface BodyConsumer<T> {
+        T consume(InputStream is) throws IOException;
+    }
+
+    /**
+     * Stops a response from growing beyond what we are willing to read
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long mLimit;
+        private long mCount;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            mLimit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int r = super.read(b, off, len);
+            if (r > 0) count(r);
+            return r;
+        }
+
+        private void count(int n) throws IOException {
+            mCount += n;
+            if (mCount > mLimit)
+                throw new IOException("Response larger than " + mLimit + " bytes");
+        }
+    }
+
     public Download(String url, File file, String matchSUM, UpdateService us) {
         mURL = url;
         mFile = file;
@@ -80,41 +180,166 @@ public class Download {
         mPrefs = PreferenceManager.getDefaultSharedPreferences(us);
     }
 
-    public String asString() {
-        return asString(mURL);
+    /**
+     * Enables verifying the download per chunk, so corrupt parts can be
+     * fetched again instead of the whole file
+     */
+    public void setChunkManifest(ChunkManifest manifest) {
+        mChunkManifest = manifest;
     }
 
-    public static String asString(String url) {
-        Logger.d("download as string: %s", url);
+    /**
+     * @param size smallest part of the file worth a connection of its own
+     */
+    void setMinSegmentSize(long size) {
+        mMinSegmentSize = size;
+    }
 
-        HttpsURLConnection urlConnection = null;
-        InputStream is = null;
-        ByteArrayOutputStream byteArray = null;
-        try {
-            urlConnection = setupHttpsRequest(url);
-            if (urlConnection == null) return null;
+    /**
+     * @param urls other locations of the same file, segments are spread over
+     *             them and the primary one by how fast they are
+     */
+    public void setMirrors(List<String> urls) {
+        mMirrorUrls = urls;
+    }
 
-            is = urlConnection.getInputStream();
-            byteArray = new ByteArrayOutputStream();
-            int byteInt;
+    /**
+     * Makes stop() and pause() cancel the token, and the download end as
+     * soon as anyone else cancels it
+     */
+    public void setCancellationToken(CancellationToken token) {
+        mToken = token;
+    }
 
-            while ((byteInt = is.read()) >= 0)
-                byteArray.write(byteInt);
+    /**
+     * Limits the speed of all connections together, takes effect right away
+     * @param bytesPerSecond 0 for no limit
+     */
+    public void setRateLimit(long bytesPerSecond) {
+        if (mRateLimiter.getRate() == bytesPerSecond) return;
+        Logger.d("download rate limit: %d B/s", bytesPerSecond);
+        mRateLimiter.setRate(bytesPerSecond);
+    }
 
-            byte[] bytes = byteArray.toByteArray();
-            if (bytes == null) return null;
+    public String asString() {
+        return asString(mURL);
+    }
+
+    public static String asString(String url) {
+        return asString(url, null);
+    }
 
-            return new String(bytes, StandardCharsets.UTF_8);
+    /**
+     * @param token optional, closes the connection when cancelled
+     */
+    public static String asString(String url, CancellationToken token) {
+        return asString(url, token, true);
+    }
+
+    /**
+     * @param token optional, closes the connection when cancelled
+     * @param essential false if the request can wait for a rate limit to
+     *                  reset, see GitHubRateLimit
+     */
+    public static String asString(String url, CancellationToken token, boolean essential) {
+        try {
+            return fetch(url, METADATA_MAX_SIZE, token, essential, is -> {
+                ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+                byte[] buffer = new byte[METADATA_BUFFER_SIZE];
+                int r;
+                while ((r = is.read(buffer)) >= 0)
+                    byteArray.write(buffer, 0, r);
+                return byteArray.toString(StandardCharsets.UTF_8.name());
+            });
         } catch (Exception e) {
             // Download failed for any number of reasons, timeouts, connection
             // drops, etc. Just log it in debugging mode.
             Logger.ex(e);
             return null;
+        }
+    }
+
+    /**
+     * Fetches a small file and hands the body to the consumer while it
+     * arrives, so it can be parsed without keeping a copy around
+     * @param maxSize the most bytes the body may have
+     * @param token optional, closes the connection when cancelled
+     * @return what the consumer returned
+     */
+    public static <T> T fetch(String url, long maxSize, CancellationToken token,
+            BodyConsumer<T> consumer) throws IOException {
+        return fetch(url, maxSize, token, true, consumer);
+    }
+
+    /**
+     * @param essential false if the request can wait for a rate limit to
+     *                  reset, see GitHubRateLimit
+     */
+    public static <T> T fetch(String url, long maxSize, CancellationToken token,
+            boolean essential, BodyConsumer<T> consumer) throws IOException {
+        Logger.d("fetch: %s", url);
+
+        final HttpCache cache = HttpCache.getInstance();
+        final HttpCache.Entry cached = cache != null ? cache.get(url) : null;
+        final GitHubRateLimit rateLimit = GitHubRateLimit.isApiUrl(url)
+                ? GitHubRateLimit.getInstance() : null;
+        if (rateLimit != null && !rateLimit.tryAcquire(essential)) {
+            if (cached == null)
+                throw new GitHubRateLimit.RateLimitedException(rateLimit.getReset());
+            // possibly outdated, but better than nothing until the reset
+            Logger.d("fetch: rate limited, using cached response");
+            try (InputStream is = cached.open()) {
+                return consumer.consume(is);
+            }
+        }
+        HttpURLConnection urlConnection = openConnection(url);
+        if (cached != null) cached.addValidators(urlConnection);
+        HttpCache.Writer writer = null;
+        // completed responses leave the connection to the next request
+        boolean reusable = false;
+        try (CancellationToken.Registration ignored = token == null ? null
+                     : token.register(urlConnection::disconnect)) {
+            final int code = connect(urlConnection, token);
+            if (rateLimit != null) rateLimit.update(urlConnection);
+            final T result;
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                cache.onHit();
+                Logger.d("fetch: not modified, using cached response");
+                try (InputStream is = cached.open()) {
+                    result = consumer.consume(is);
+                }
+            } else {
+                if (code != HttpURLConnection.HTTP_OK) {
+                    reusable = true;
+                    throw new RetryPolicy.HttpStatusException(code, HttpURLConnection.HTTP_OK,
+                            urlConnection.getHeaderField("Retry-After"));
+                }
+                final long len = urlConnection.getContentLengthLong();
+                if (len > maxSize)
+                    throw new IOException("Response of " + len + " bytes, at most "
+                            + maxSize + " allowed");
+                if (cache != null) {
+                    cache.onMiss();
+                    writer = cache.newWriter(url, urlConnection);
+                }
+                // closed by HttpClient.release()
+                final InputStream is = new LimitedInputStream(new BufferedInputStream(
+                        getInputStream(urlConnection), METADATA_BUFFER_SIZE), maxSize);
+                if (writer == null) {
+                    result = consumer.consume(is);
+                } else {
+                    final InputStream tee = writer.tee(is);
+                    result = consumer.consume(tee);
+                    // the consumer may stop early, the cache needs the whole body
+                    writer.commit(tee);
+                }
+            }
+            reusable = true;
+            return result;
         } finally {
-            if (urlConnection != null)
-                urlConnection.disconnect();
-            try { if (is != null) is.close(); } catch (IOException ignored) {}
-            try { if (byteArray != null) byteArray.close(); } catch (IOException ignored) {}
+            if (writer != null) writer.abort();
+            if (reusable) HttpClient.release(urlConnection);
+            else urlConnection.disconnect();
         }
     }
 
@@ -122,7 +347,7 @@ public class Download {
             ApkDownloadListener listener, Handler handler) {
         Logger.d("download apk: %s", url);
 
-        HttpsURLConnection urlConnection = null;
+        HttpURLConnection urlConnection = null;
         InputStream is = null;
         FileOutputStream os = null;
         File file = null;
@@ -133,7 +358,7 @@ public class Download {
             urlConnection = setupHttpsRequest(url);
             if (urlConnection == null) return;
 
-            is = urlConnection.getInputStream();
+            is = getInputStream(urlConnection);
             os = new FileOutputStream(file, false);
             byte[] buffer = new byte[262144];
             int r;
@@ -162,15 +387,32 @@ public class Download {
         return getSize(mURL);
     }
 
+    /**
+     * Asks for the size without the body, with a HEAD request or, where the
+     * server doesn't answer those, a request for the first byte
+     * @return the size, 0 if unknown
+     */
     public static long getSize(String url) {
         Logger.d("getSize: %s", url);
 
-        HttpsURLConnection urlConnection = null;
+        HttpURLConnection urlConnection = null;
         try {
-            urlConnection = setupHttpsRequest(url);
-            if (urlConnection == null) return 0;
+            urlConnection = openConnection(url);
+            urlConnection.setRequestMethod("HEAD");
+            // the size of the file, not of a compressed transfer of it
+            urlConnection.setRequestProperty("Accept-Encoding", "identity");
+            final int code = connect(urlConnection, null);
+            final long len = urlConnection.getContentLengthLong();
+            HttpClient.release(urlConnection);
+            urlConnection = null;
+            if (code == HttpURLConnection.HTTP_OK && len > 0) return len;
 
-            return getSize(urlConnection);
+            Logger.d("getSize: HEAD gave %d, asking for a range", code);
+            urlConnection = setupRangeRequest(url, 0, 0, null, null);
+            final long total = getRangeTotal(urlConnection);
+            HttpClient.release(urlConnection);
+            urlConnection = null;
+            return Math.max(0, total);
         } catch (Exception e) {
             // Download failed for any number of reasons, timeouts, connection
             // drops, etc. Just log it in debugging mode.
@@ -182,7 +424,7 @@ public class Download {
         }
     }
 
-    private static long getSize(HttpsURLConnection urlConnection) throws Exception {
+    private static long getSize(HttpURLConnection urlConnection) throws Exception {
         long contentLen = urlConnection.getContentLengthLong();
         if (contentLen > 0) {
             return contentLen;
@@ -200,42 +442,100 @@ public class Download {
         return contentLen;
     }
 
+    /**
+     * Downloads the file, retrying transient failures from where the last
+     * attempt left off until the retry budget is used up
+     */
     public boolean start() {
         mStatus = -1;
-        Logger.d("download: %s", mURL);
+        final RetryPolicy retryPolicy = new RetryPolicy(
+                Config.getInstance(mUpdateService).getDownloadRetryAttempts());
+        boolean restarted = false;
+        while (!mToken.isCancelled()) {
+            mFailure = null;
+            mRemoteChanged = false;
+            final long before = PartInfo.getDownloaded(mFile);
+            final boolean result = download();
+            if (result || mStatus >= 0) return result;
+            if (mRemoteChanged && !restarted) {
+                // what we had is gone already, one fresh attempt
+                Logger.i("Restarting download of changed file");
+                restarted = true;
+                continue;
+            }
+            if (mFailure == null) return false;
+            if (PartInfo.getDownloaded(mFile) > before) retryPolicy.onProgress();
+            final long delay = retryPolicy.getDelay(mFailure);
+            if (delay < 0) {
+                Logger.i("Download failed, giving up after %d retries",
+                        retryPolicy.getRetries());
+                return false;
+            }
+            Logger.i("Download failed, retry %d in %d ms", retryPolicy.getRetries(), delay);
+            if (!waitForRetry(delay)) return false;
+        }
+        return false;
+    }
 
-        HttpsURLConnection urlConnection = null;
-        InputStream is = null;
-        FileOutputStream os = null;
-        MessageDigest digest = null;
-        long len = 0;
-        if (mMatchSUM != null) {
+    /**
+     * @return false if the download was stopped or paused while waiting
+     */
+    private boolean waitForRetry(long delay) {
+        final long end = SystemClock.elapsedRealtime() + delay;
+        long now;
+        while (mStatus < 0 && !mToken.isCancelled()
+                && (now = SystemClock.elapsedRealtime()) < end) {
             try {
-                digest = MessageDigest.getInstance(DIGEST_ALGO);
-            } catch (NoSuchAlgorithmException e) {
-                // No SHA-256 algorithm support
-                Logger.ex(e);
+                Thread.sleep(Math.min(250L, end - now));
+            } catch (InterruptedException e) {
+                return false;
             }
         }
+        return mStatus < 0 && !mToken.isCancelled();
+    }
 
+    private boolean download() {
+        Logger.d("download: %s", mURL);
+
+        HttpURLConnection urlConnection = null;
+        PartFileWriter writer = null;
+        FileChannel channel = null;
+        ExecutorService executor = null;
+        ExecutorService verifier = null;
+        DownloadPipeline pipeline = null;
+        ProgressSampler.Registration progress = null;
+        PartInfo info = null;
+        DownloadHasher hasher = null;
+        boolean keepInfo = true;
         long lastTime = SystemClock.elapsedRealtime();
-        long offset = 0;
-        if (mFile.exists()) offset = mFile.length();
 
         try {
             final String userFN = mFile.getName().substring(0, mFile.getName().length() - 5);
             mState.update(State.ACTION_DOWNLOADING, 0f, 0L, 0L, userFN, null);
-            urlConnection = setupHttpsRequest(mURL);
-            if (urlConnection == null) return false;
+            // the response that tells the size carries the first part of the
+            // body too, resuming asks for where the download left off
+            long initialStart = 0;
+            final PartInfo.Segment resume = getResumeSegment();
+            if (resume != null) {
+                urlConnection = openResumeRequest(resume);
+                if (urlConnection != null) initialStart = resume.getPosition();
+            }
+            if (urlConnection == null) urlConnection = openRequest(mURL, mToken);
 
-            len = getSize(urlConnection);
+            final long len = initialStart > 0 ? getRangeTotal(urlConnection)
+                    : getSize(urlConnection);
             mPrefs.edit().putLong(UpdateService.PREF_DOWNLOAD_SIZE, len).apply();
-            if (offset > 0 && offset < len) {
-                urlConnection.disconnect();
-                urlConnection = setupHttpsRequest(mURL, offset);
-                if (urlConnection == null) return false;
+            final boolean acceptRanges = initialStart > 0 || "bytes".equalsIgnoreCase(
+                    urlConnection.getHeaderField("Accept-Ranges"));
+
+            info = getPartInfo(len, acceptRanges, getValidator(urlConnection));
+            // mirrors only help when the file comes in ranges
+            mMirrors = new MirrorPool(mURL,
+                    acceptRanges ? mMirrorUrls : Collections.emptyList(), len);
+            if (mMirrors.size() > 1) probeMirrors();
+            final long offset = info.getDownloaded();
+            if (offset > 0)
                 Logger.d("Resuming download at: " + offset);
-            }
 
             mState.update(State.ACTION_DOWNLOADING, 0f, 0L, len, userFN, null);
 
@@ -248,100 +548,648 @@ public class Download {
                 return false;
             }
 
+            if ((len <= 0) || (len >= 4L * 1024L * 1024L * 1024L))
+                return false;
+
+            ChunkManifest manifest = null;
+            if (mChunkManifest != null) {
+                if (mChunkManifest.matches(len)) {
+                    manifest = mChunkManifest;
+                    verifier = Executors.newFixedThreadPool(
+                            Runtime.getRuntime().availableProcessors());
+                } else {
+                    Logger.i("Chunk manifest does not match the download, ignoring it");
+                }
+            }
+            final Map<Integer, Future<Boolean>> chunkChecks = new HashMap<>();
+            final Set<Integer> corruptChunks = new HashSet<>();
+
             if (offset > 0)
                 lastTime -= mPrefs.getLong(UpdateService.PREF_LAST_DOWNLOAD_TIME, 0);
-            final long[] last = new long[] { 0, len, 0, lastTime };
-            ProgressListener progressListener = new ProgressListener() {
-                @Override
-                public void onProgress(float progress, long current, long total) {
-                    current += last[0];
-                    total = last[1];
-                    progress = ((float) current / (float) total) * 100f;
-                    long now = SystemClock.elapsedRealtime();
-                    if (now >= last[2] + 250L) {
-                        mState.update(State.ACTION_DOWNLOADING, progress,
-                                current, total, userFN, now - last[3]);
-                        mUpdateService.setDownloadNotificationProgress(progress, current,
-                                total, now - last[3]);
-                        last[2] = now;
+            final long startTime = lastTime;
+            final ProgressSampler.Sink progressSink = (current, total) -> {
+                final float percent = ProgressCounter.getPercent(current, total);
+                final long elapsed = SystemClock.elapsedRealtime() - startTime;
+                mState.update(State.ACTION_DOWNLOADING, percent, current, total, userFN,
+                        elapsed);
+                mUpdateService.setDownloadNotificationProgress(percent, current, total,
+                        elapsed);
+            };
+
+            mIsRunning = true;
+            boolean retry = true;
+            while (retry) {
+                retry = false;
+                final List<PartInfo.Segment> segments = info.getSegments();
+                hasher = DownloadHasher.restore(info);
+
+                // the response we already have can be used for the segment
+                // continuing where it starts
+                HttpURLConnection initialConnection = null;
+                PartInfo.Segment initialSegment = null;
+                if (urlConnection != null) {
+                    for (PartInfo.Segment segment : segments) {
+                        if (!segment.isComplete() && segment.getPosition() == initialStart
+                                && (initialStart == 0 || segment.end == resume.end)) {
+                            initialConnection = urlConnection;
+                            initialSegment = segment;
+                            urlConnection = null;
+                            break;
+                        }
                     }
                 }
-
-                public void setStatus(String s){
-                    // do nothing
+                if (urlConnection != null) {
+                    urlConnection.disconnect();
+                    urlConnection = null;
                 }
-            };
 
-            long recv = offset;
-            if ((len > 0) && (len < 4L * 1024L * 1024L * 1024L)) {
-                mIsRunning = true;
-                byte[] buffer = new byte[262144];
+                writer = new PartFileWriter(mFile);
+                channel = writer.getChannel();
+                try {
+                    if (writer.preallocate(len))
+                        Logger.d("Reserved " + len + " bytes");
+                } catch (PartFileWriter.DiskFullException e) {
+                    Logger.ex(e);
+                    mState.update(State.ERROR_DISK_SPACE, null, freeSpace, len, null,
+                            null);
+                    return false;
+                }
+                executor = Executors.newFixedThreadPool(segments.size());
+                final ProgressCounter received = new ProgressCounter(len);
+                received.set(info.getDownloaded());
+                final AtomicBoolean abort = new AtomicBoolean(false);
+                final CompletionService<Void> completion =
+                        new ExecutorCompletionService<>(executor);
+                int pending = 0;
+                pipeline = new DownloadPipeline(writer, hasher, received);
+                progress = ProgressSampler.getInstance().start(received, progressSink);
+                for (PartInfo.Segment segment : segments) {
+                    if (segment.isComplete()) continue;
+                    final HttpURLConnection connection =
+                            segment == initialSegment ? initialConnection : null;
+                    final DownloadPipeline _pipeline = pipeline;
+                    final String validator = info.getValidator();
+                    completion.submit(() -> {
+                        downloadSegment(segment, connection, validator, _pipeline, abort);
+                        return null;
+                    });
+                    pending++;
+                }
+                if (pending == 0 && initialConnection != null)
+                    initialConnection.disconnect();
+                Logger.d("downloading " + pending + " of " + segments.size() + " segments");
 
-                is = urlConnection.getInputStream();
-                os = new FileOutputStream(mFile, offset > 0);
-                int r;
-                while ((r = is.read(buffer)) > 0) {
-                    if (mStatus >= 0) {
-                        return false;
+                // wait for all segments in the order they finish, so the
+                // others are stopped as soon as any of them fails, hashing
+                // what the segments could not and saving the state meanwhile
+                final Config config = Config.getInstance(mUpdateService);
+                long lastSync = SystemClock.elapsedRealtime();
+                long lastSyncReceived = received.get();
+                Exception failure = null;
+                while (pending > 0) {
+                    final Future<Void> done = completion.poll(250, TimeUnit.MILLISECONDS);
+                    if (done != null) {
+                        pending--;
+                        try {
+                            done.get();
+                        } catch (ExecutionException e) {
+                            if (failure == null && e.getCause() instanceof Exception)
+                                failure = (Exception) e.getCause();
+                            abort.set(true);
+                        }
+                        continue;
                     }
-                    os.write(buffer, 0, r);
-                    if (offset == 0 && digest != null)
-                        digest.update(buffer, 0, r);
-
-                    recv += r;
-                    progressListener.onProgress(
-                            ((float) recv / (float) len) * 100f,
-                            recv, len);
+                    hasher.catchUp(channel, info.getContiguous(), HASH_CATCH_UP_SIZE, null);
+                    if (manifest != null)
+                        checkChunks(manifest, info, channel, verifier, chunkChecks,
+                                corruptChunks, false);
+                    final long now = SystemClock.elapsedRealtime();
+                    if (now >= lastSync + config.getDownloadSyncIntervalMs()
+                            || received.get() >= lastSyncReceived
+                                    + config.getDownloadSyncIntervalBytes()) {
+                        checkpoint(writer, info, hasher);
+                        lastSync = now;
+                        lastSyncReceived = received.get();
+                    }
+                }
+                executor.shutdown();
+                executor = null;
+                try {
+                    pipeline.finish();
+                } catch (IOException e) {
+                    if (failure == null) failure = e;
                 }
+                pipeline = null;
+                progress.close();
+                progress = null;
+                checkpoint(writer, info, hasher);
 
-                String sumStr;
-                if (offset > 0) {
-                    final ProgressListener listener = mUpdateService.getSUMProgress(
-                            State.ACTION_CHECKING_SUM, mFile.getName());
-                    sumStr = UpdateService.getFileSHA256(mFile, listener);
-                } else {
-                    if (digest == null) return false;
-                    sumStr = digestToHexString(digest);
+                if (failure instanceof RangeIgnoredException) {
+                    // we can't have parts of the file, start over in one piece
+                    Logger.i("Server ignored range request, downloading in one piece");
+                    for (Future<Boolean> check : chunkChecks.values())
+                        check.cancel(false);
+                    chunkChecks.clear();
+                    corruptChunks.clear();
+                    writer.close();
+                    writer = null;
+                    channel = null;
+                    mFile.delete();
+                    info = PartInfo.createContinuous(mFile, mURL, len);
+                    mMirrors = new MirrorPool(mURL, Collections.emptyList(), len);
+                    urlConnection = openRequest(mURL, mToken);
+                    initialStart = 0;
+                    info.setValidator(getValidator(urlConnection));
+                    info.save();
+                    retry = true;
+                    continue;
                 }
-                boolean sumCheck = sumStr.equals(mMatchSUM);
-                Logger.d("sumStr=" + sumStr + " matchSUM=" + mMatchSUM);
-                if (!sumCheck) {
-                    mIsRunning = false;
-                    Logger.i("SUM check failed for " + mURL);
-                    // if sum does not match when done, get rid
+                if (failure instanceof RemoteChangedException) {
+                    // none of what we have belongs to the new file
+                    Logger.i("File changed on the server, discarding download");
+                    keepInfo = false;
                     mFile.delete();
-                    mState.update(State.ERROR_DOWNLOAD_SHA);
+                    PartInfo.delete(mFile);
+                    mRemoteChanged = true;
+                    return false;
                 }
-                return sumCheck;
+                if (failure != null) throw failure;
             }
-            return false;
+            if (mStatus >= 0) {
+                return false;
+            }
+
+            // only what was not hashed on the go is left
+            final long hashed = hasher.getOffset();
+            if (hashed < len) {
+                Logger.d("hashing remaining " + (len - hashed) + " bytes");
+                final ProgressCounter counter = new ProgressCounter(len);
+                try (ProgressSampler.Registration ignored = ProgressSampler.getInstance()
+                        .start(counter, mUpdateService.getSUMProgress(
+                                State.ACTION_CHECKING_SUM, mFile.getName()))) {
+                    hasher.catchUp(channel, len, Long.MAX_VALUE, counter);
+                }
+            }
+            final String sumStr = hasher.finish();
+            // the digest is used up, a resume from here hashes the file again
+            hasher = null;
+            info.setHashState(null);
+            boolean sumCheck = mMatchSUM != null && mMatchSUM.equals(sumStr);
+            Logger.d("sumStr=" + sumStr + " matchSUM=" + mMatchSUM);
+            if (!sumCheck && mMatchSUM != null && manifest != null) {
+                try {
+                    checkChunks(manifest, info, channel, verifier, chunkChecks,
+                            corruptChunks, true);
+                    sumCheck = repairChunks(manifest, info, writer, verifier, corruptChunks);
+                } catch (IOException e) {
+                    Logger.ex(e);
+                }
+                if (mStatus >= 0) {
+                    // paused while repairing, the file and its state are kept
+                    // and the chunks still corrupt are fetched on resume
+                    return false;
+                }
+            }
+            keepInfo = false;
+            writer.close();
+            writer = null;
+            channel = null;
+            PartInfo.delete(mFile);
+            if (!sumCheck) {
+                mIsRunning = false;
+                Logger.i("SUM check failed for " + mURL);
+                // if sum does not match when done, get rid
+                mFile.delete();
+                mState.update(State.ERROR_DOWNLOAD_SHA);
+            }
+            return sumCheck;
         } catch (Exception e) {
             // Download failed for any number of reasons, timeouts, connection
             // drops, etc. Just log it in debugging mode.
             mIsRunning = false;
+            mFailure = e;
             Logger.ex(e);
             mPrefs.edit().putLong(UpdateService.PREF_LAST_DOWNLOAD_TIME,
                     SystemClock.elapsedRealtime() - lastTime).apply();
-            if (urlConnection != null) urlConnection.disconnect();
-            try { if (is != null) is.close(); } catch (IOException ignored) {}
-            try { if (os != null) os.close(); } catch (IOException ignored) {}
             return false;
         } finally {
             mIsRunning = false;
+            if (executor != null) executor.shutdownNow();
+            try { if (pipeline != null) pipeline.finish(); } catch (IOException ignored) {}
+            if (progress != null) progress.close();
+            if (verifier != null) verifier.shutdown();
             if (urlConnection != null) urlConnection.disconnect();
-            try { if (is != null) is.close(); } catch (IOException ignored) {}
-            try { if (os != null) os.close(); } catch (IOException ignored) {}
+            try {
+                if (keepInfo && info != null && mFile.exists()) {
+                    if (writer != null) checkpoint(writer, info, hasher);
+                    else info.save();
+                }
+            } catch (IOException e) {
+                Logger.ex(e);
+            }
+            try { if (writer != null) writer.close(); } catch (IOException ignored) {}
         }
     }
 
-    public synchronized void stop() {
-        mStatus = STATUS_DOWNLOAD_STOP;
-        mIsRunning = false;
+    /**
+     * @return the first unfinished segment of the saved state, if the
+     *         download is resumed part way a segment
+     */
+    private PartInfo.Segment getResumeSegment() {
+        final PartInfo saved = PartInfo.load(mFile);
+        if (saved == null || !mURL.equals(saved.getUrl())) return null;
+        for (PartInfo.Segment segment : saved.getSegments()) {
+            if (segment.isComplete()) continue;
+            return segment.getPosition() > 0 ? segment : null;
+        }
+        return null;
     }
 
-    public synchronized void pause() {
-        mStatus = STATUS_DOWNLOAD_PAUSE;
-        mIsRunning = false;
+    /**
+     * Requests the rest of the segment, only if the file on the server is
+     * still the one the saved state belongs to
+     * @return the response, null if the download has to start with the
+     *         whole file instead
+     */
+    private HttpURLConnection openResumeRequest(PartInfo.Segment segment) throws IOException {
+        final PartInfo saved = PartInfo.load(mFile);
+        if (saved == null) return null;
+        final String validator = saved.getValidator();
+        final HttpURLConnection urlConnection;
+        try {
+            urlConnection = setupRangeRequest(mURL, segment.getPosition(), segment.end - 1,
+                    validator, mToken);
+        } catch (RangeIgnoredException | RemoteChangedException e) {
+            Logger.d("Can't resume with a range request: " + e.getMessage());
+            return null;
+        }
+        // a total that doesn't match would throw the saved state away, the
+        // size of the whole file is taken from its Content-Length instead
+        final long total = getRangeTotal(urlConnection);
+        if (total != saved.getTotal()) {
+            Logger.d("Can't resume, range total " + total + " instead of " + saved.getTotal());
+            urlConnection.disconnect();
+            return null;
+        }
+        return urlConnection;
+    }
+
+    /**
+     * Flushes what has been written to storage, then saves the state up to
+     * there. After a crash or power loss the download resumes from data
+     * that is known to be intact instead of whatever the file length says.
+     * The hash state is taken first, everything it covers is part of the
+     * progress synced after it.
+     */
+    private static void checkpoint(PartFileWriter writer, PartInfo info,
+            DownloadHasher hasher) throws IOException {
+        if (hasher != null) hasher.checkpoint(info);
+        final long[] done = info.snapshot();
+        writer.sync();
+        info.setDurable(done);
+        info.save();
+    }
+
+    /**
+     * Restores the segments of a previous attempt if they still match,
+     * otherwise splits the download into new segments
+     */
+    private PartInfo getPartInfo(long len, boolean acceptRanges, String validator)
+            throws IOException {
+        PartInfo info = PartInfo.load(mFile);
+        if (info != null && (info.getTotal() != len || !mURL.equals(info.getUrl()))) {
+            Logger.d("Discarding stale download state");
+            info = null;
+            mFile.delete();
+        } else if (info != null && info.getValidator() != null
+                && !info.getValidator().equals(validator)) {
+            Logger.i("File changed on the server, discarding download state");
+            info = null;
+            mFile.delete();
+        }
+        if (info == null) {
+            // without its info the file length says nothing, the file is
+            // preallocated and segments are written out of order
+            if (mFile.exists()) {
+                Logger.d("Discarding download without state");
+                mFile.delete();
+            }
+            final int connections = acceptRanges
+                    ? Config.getInstance(mUpdateService).getDownloadConnections() : 1;
+            info = PartInfo.create(mFile, mURL, len, connections, mMinSegmentSize);
+            info.setValidator(validator);
+            info.save();
+        }
+        return info;
+    }
+
+    /**
+     * Queues the chunks that have been written completely for verification
+     * and collects the results of earlier checks
+     * @param wait whether to wait for all queued checks to complete
+     */
+    private static void checkChunks(ChunkManifest manifest, PartInfo info, FileChannel channel,
+            ExecutorService verifier, Map<Integer, Future<Boolean>> checks, Set<Integer> corrupt,
+            boolean wait) throws IOException {
+        final long len = info.getTotal();
+        for (int i = 0; i < manifest.getCount(); i++) {
+            if (checks.containsKey(i) || corrupt.contains(i) || info.isChunkVerified(i))
+                continue;
+            if (!info.isWritten(manifest.getStart(i), manifest.getEnd(i, len)))
+                continue;
+            final int index = i;
+            checks.put(i, verifier.submit(() -> manifest.verify(channel, index, len)));
+        }
+        Iterator<Map.Entry<Integer, Future<Boolean>>> it = checks.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Integer, Future<Boolean>> check = it.next();
+            if (!wait && !check.getValue().isDone()) continue;
+            try {
+                if (check.getValue().get()) {
+                    info.setChunkVerified(check.getKey());
+                } else {
+                    Logger.i("Chunk " + check.getKey() + " is corrupt");
+                    corrupt.add(check.getKey());
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException(e);
+            }
+            it.remove();
+        }
+    }
+
+    /**
+     * Fetches the corrupt chunks again after the complete file failed its
+     * check, the rest of the file is kept
+     * @return whether the file matches the expected sum afterwards
+     */
+    private boolean repairChunks(ChunkManifest manifest, PartInfo info, PartFileWriter writer,
+            ExecutorService verifier, Set<Integer> corrupt) throws Exception {
+        final FileChannel channel = writer.getChannel();
+        final long len = info.getTotal();
+        List<Integer> unchecked = new ArrayList<>();
+        for (int i = 0; i < manifest.getCount(); i++)
+            if (!corrupt.contains(i) && !info.isChunkVerified(i)) unchecked.add(i);
+        corrupt.addAll(manifest.findCorrupt(channel, unchecked, len, verifier));
+        Logger.i(corrupt.size() + " of " + manifest.getCount() + " chunks corrupt");
+        if (corrupt.isEmpty()) return false;
+
+        final DownloadPipeline pipeline = new DownloadPipeline(writer, null,
+                new ProgressCounter(0));
+        final AtomicBoolean abort = new AtomicBoolean(false);
+        try {
+            for (int index : corrupt) {
+                final PartInfo.Segment segment = new PartInfo.Segment(
+                        manifest.getStart(index), manifest.getEnd(index, len), 0);
+                downloadSegment(segment, null, info.getValidator(), pipeline, abort);
+                if (mStatus >= 0) return false;
+            }
+        } finally {
+            pipeline.finish();
+        }
+        if (!manifest.findCorrupt(channel, corrupt, len, verifier).isEmpty()) {
+            Logger.i("Chunks still corrupt after fetching them again");
+            return false;
+        }
+
+        final ProgressListener listener = mUpdateService.getSUMProgress(
+                State.ACTION_CHECKING_SUM, mFile.getName());
+        final String sumStr = UpdateService.getFileSHA256(mFile, listener, mToken);
+        Logger.d("repaired sumStr=" + sumStr + " matchSUM=" + mMatchSUM);
+        return mMatchSUM.equals(sumStr);
+    }
+
+    /**
+     * Reads the rest of the segment from the network, writing and hashing
+     * is left to the pipeline. When the mirror fails or falls far behind the
+     * others the rest of the segment is taken from another one, starting
+     * where reading stopped. The segment's own progress lags behind that by
+     * the blocks still queued for writing.
+     */
+    private void downloadSegment(PartInfo.Segment segment, HttpURLConnection urlConnection,
+            String validator, DownloadPipeline pipeline, AtomicBoolean abort)
+            throws IOException {
+        MirrorPool.Mirror mirror = urlConnection != null
+                ? mMirrors.claim(mMirrors.getPrimary()) : mMirrors.acquire(null);
+        if (mirror == null) throw new IOException("No mirror left to download from");
+        final long[] position = new long[] { segment.getPosition() };
+        int moves = 0;
+        while (true) {
+            final MirrorPool.Mirror current = mirror;
+            IOException failure = null;
+            try {
+                if (urlConnection == null) {
+                    try {
+                        urlConnection = openSegment(current, position[0], segment.end,
+                                validator);
+                    } catch (IOException e) {
+                        throw new MirrorException(e);
+                    }
+                }
+                final HttpURLConnection connection = urlConnection;
+                urlConnection = null;
+                if (readSegment(segment, position, connection, current, pipeline, abort,
+                        moves < mMirrors.size())) {
+                    current.onSuccess();
+                    return;
+                }
+                moves++;
+                Logger.i("Segment at %d moves away from slow mirror %s",
+                        position[0], current.url);
+            } catch (MirrorException e) {
+                failure = e.getCause();
+                if (mMirrors.size() < 2 || mToken.isCancelled() || mStatus >= 0
+                        || abort.get() || failure instanceof RemoteChangedException
+                        || (failure instanceof RangeIgnoredException && current.primary))
+                    throw failure;
+                current.onFailure();
+                Logger.i("Segment at %d failed on mirror %s: %s", position[0],
+                        current.url, failure.getMessage());
+            } finally {
+                mMirrors.release(current);
+            }
+            mirror = mMirrors.acquire(current);
+            if (mirror == null)
+                throw failure != null ? failure : new IOException("No mirror left");
+        }
+    }
+
+    /**
+     * @param position where the response starts, advanced with every block
+     *                 handed to the pipeline
+     * @return whether the segment is done, false if it should move to
+     *         another mirror
+     * @throws MirrorException if the mirror failed to deliver
+     */
+    private boolean readSegment(PartInfo.Segment segment, long[] position,
+            HttpURLConnection urlConnection, MirrorPool.Mirror mirror,
+            DownloadPipeline pipeline, AtomicBoolean abort, boolean mayMove)
+            throws IOException {
+        try (CancellationToken.Registration ignored =
+                     mToken.register(urlConnection::disconnect);
+             InputStream is = getMirrorInputStream(urlConnection)) {
+            long pos = position[0];
+            long windowStart = System.nanoTime();
+            long windowBytes = 0;
+            long windowNanos = 0;
+            while (pos < segment.end) {
+                final DownloadPipeline.Block block = pipeline.obtain();
+                final long start = System.nanoTime();
+                final int r;
+                try {
+                    r = is.read(block.buffer, 0,
+                            (int) Math.min(block.buffer.length, segment.end - pos));
+                } catch (IOException e) {
+                    pipeline.release(block);
+                    throw new MirrorException(e);
+                }
+                final long readNanos = System.nanoTime() - start;
+                if (r < 0 || mStatus >= 0 || abort.get()) {
+                    pipeline.release(block);
+                    if (r < 0)
+                        throw new MirrorException(new EOFException(
+                                "Segment ended at " + pos + " of " + segment.end));
+                    return true;
+                }
+                pipeline.submit(block, segment, pos, r, readNanos);
+                pos += r;
+                position[0] = pos;
+                mirror.addTransfer(r, readNanos);
+                windowBytes += r;
+                windowNanos += readNanos;
+                // the rate is taken from the time spent reading, waiting for
+                // the rate limit or the pipeline doesn't make a mirror slow
+                if (mayMove && System.nanoTime() - windowStart >= SLOW_CHECK_NANOS) {
+                    if (pos < segment.end && windowNanos > 0 && mMirrors.isSlow(mirror,
+                            (long) (windowBytes * 1000000000.0 / windowNanos)))
+                        return false;
+                    windowStart = System.nanoTime();
+                    windowBytes = 0;
+                    windowNanos = 0;
+                }
+                mRateLimiter.acquire(r, mToken);
+            }
+            return true;
+        } finally {
+            urlConnection.disconnect();
+        }
+    }
+
+    private static InputStream getMirrorInputStream(HttpURLConnection urlConnection)
+            throws MirrorException {
+        try {
+            return getInputStream(urlConnection);
+        } catch (IOException e) {
+            throw new MirrorException(e);
+        }
+    }
+
+    /**
+     * Requests [start, end) of the file from the mirror. Only the primary
+     * location is checked against the validator, the others have to serve
+     * a file of the same size.
+     */
+    private HttpURLConnection openSegment(MirrorPool.Mirror mirror, long start, long end,
+            String validator) throws IOException {
+        if (mirror.primary)
+            return setupRangeRequest(mURL, start, end - 1, validator, mToken);
+        return openMirrorRange(mirror.url, start, end - 1, mMirrors.getTotal());
+    }
+
+    private HttpURLConnection openMirrorRange(String url, long start, long end, long total)
+            throws IOException {
+        final HttpURLConnection urlConnection = setupRangeRequest(url, start, end, null,
+                mToken);
+        final long mirrorTotal = getRangeTotal(urlConnection);
+        if (mirrorTotal != total) {
+            urlConnection.disconnect();
+            throw new IOException("Mirror serves " + mirrorTotal + " bytes instead of "
+                    + total);
+        }
+        return urlConnection;
+    }
+
+    /**
+     * @return the size of the file from a Content-Range, -1 if not given
+     */
+    private static long getRangeTotal(HttpURLConnection urlConnection) {
+        final String range = urlConnection.getHeaderField("Content-Range");
+        if (range == null) return -1;
+        try {
+            return Long.parseLong(range.substring(range.lastIndexOf('/') + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Ranks the mirrors by fetching the start of the file from all of them
+     * at once. Mirrors that don't serve the same file are left out.
+     */
+    private void probeMirrors() {
+        final List<MirrorPool.Mirror> mirrors = mMirrors.getMirrors();
+        final ExecutorService executor = Executors.newFixedThreadPool(mirrors.size());
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (MirrorPool.Mirror mirror : mirrors)
+                futures.add(executor.submit(() -> probeMirror(mirror)));
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException | InterruptedException e) {
+                    Logger.ex(e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Logger.d("mirrors: " + mMirrors);
+    }
+
+    private void probeMirror(MirrorPool.Mirror mirror) {
+        final long end = Math.min(mMirrors.getTotal(), PROBE_SIZE) - 1;
+        HttpURLConnection urlConnection = null;
+        try {
+            final long start = System.nanoTime();
+            urlConnection = mirror.primary
+                    ? setupRangeRequest(mURL, 0, end, null, mToken)
+                    : openMirrorRange(mirror.url, 0, end, mMirrors.getTotal());
+            final long rtt = System.nanoTime() - start;
+            final byte[] buffer = new byte[METADATA_BUFFER_SIZE];
+            long bytes = 0;
+            final long readStart = System.nanoTime();
+            try (CancellationToken.Registration ignored =
+                         mToken.register(urlConnection::disconnect);
+                 InputStream is = getInputStream(urlConnection)) {
+                int r;
+                while ((r = is.read(buffer)) >= 0) bytes += r;
+            }
+            mirror.onProbe(rtt, bytes, System.nanoTime() - readStart);
+        } catch (IOException e) {
+            Logger.i("Mirror %s failed the probe: %s", mirror.url, e.getMessage());
+            // the primary location is still where the download state comes from
+            if (mirror.primary) mirror.onFailure();
+            else mirror.disable();
+        } finally {
+            if (urlConnection != null) urlConnection.disconnect();
+        }
+    }
+
+    public void stop() {
+        synchronized (this) {
+            mStatus = STATUS_DOWNLOAD_STOP;
+            mIsRunning = false;
+        }
+        // closes the connections, no need to wait for a read to time out
+        mToken.cancel();
+    }
+
+    public void pause() {
+        synchronized (this) {
+            mStatus = STATUS_DOWNLOAD_PAUSE;
+            mIsRunning = false;
+        }
+        mToken.cancel();
     }
 
     public synchronized void resetState() {
@@ -357,32 +1205,25 @@ public class Download {
         return mStatus;
     }
 
-    private static HttpsURLConnection setupHttpsRequest(String urlStr) {
+    private static HttpURLConnection setupHttpsRequest(String urlStr) {
         return setupHttpsRequest(urlStr, 0);
     }
 
-    private static HttpsURLConnection setupHttpsRequest(String urlStr, long offset) {
-        URL url;
-        HttpsURLConnection urlConnection;
+    private static HttpURLConnection setupHttpsRequest(String urlStr, long offset) {
+        HttpURLConnection urlConnection;
         try {
-            url = new URL(urlStr);
-            urlConnection = (HttpsURLConnection) url.openConnection();
-            urlConnection.setConnectTimeout(HTTP_CONNECTION_TIMEOUT);
-            urlConnection.setReadTimeout(HTTP_READ_TIMEOUT);
-            urlConnection.setRequestMethod("GET");
-            urlConnection.setDoInput(true);
+            urlConnection = openConnection(urlStr);
             if (offset > 0)
                 urlConnection.setRequestProperty("Range", "bytes=" + offset + "-");
-            urlConnection.connect();
-            int code = urlConnection.getResponseCode();
-            if (offset > 0 && code != HttpsURLConnection.HTTP_PARTIAL) {
+            int code = connect(urlConnection, null);
+            if (offset > 0 && code != HttpURLConnection.HTTP_PARTIAL) {
                 Logger.d("response: %d expected: %d", code,
-                        HttpsURLConnection.HTTP_PARTIAL);
+                        HttpURLConnection.HTTP_PARTIAL);
                 return null;
             }
-            if (offset == 0 && code != HttpsURLConnection.HTTP_OK) {
+            if (offset == 0 && code != HttpURLConnection.HTTP_OK) {
                 Logger.d("response: %d expected: %d", code,
-                        HttpsURLConnection.HTTP_OK);
+                        HttpURLConnection.HTTP_OK);
                 return null;
             }
             return urlConnection;
@@ -393,12 +1234,129 @@ public class Download {
         }
     }
 
-    public static String digestToHexString(MessageDigest digest) {
-        final BigInteger bi = new BigInteger(1, digest.digest());
+    /**
+     * @return what identifies this version of the file, a strong ETag if
+     *         there is one, otherwise Last-Modified. Null if neither is sent.
+     */
+    private static String getValidator(HttpURLConnection urlConnection) {
+        final String etag = urlConnection.getHeaderField("ETag");
+        // weak ETags are not allowed in If-Range
+        if (etag != null && !etag.startsWith("W/")) return etag;
+        return urlConnection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Requests the given (inclusive) byte range
+     * @param validator optional, only accept the range if the file still matches it
+     * @throws RangeIgnoredException if the server answered with the whole file
+     * @throws RemoteChangedException if the file no longer matches the validator
+     */
+    private static HttpURLConnection setupRangeRequest(String urlStr, long start, long end,
+            String validator, CancellationToken token) throws IOException {
+        HttpURLConnection urlConnection = openConnection(urlStr);
+        urlConnection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+        // offsets are in the file, not in a compressed transfer of it
+        urlConnection.setRequestProperty("Accept-Encoding", "identity");
+        if (validator != null)
+            urlConnection.setRequestProperty("If-Range", validator);
+        final int code = connect(urlConnection, token);
+        if (code == HttpURLConnection.HTTP_PARTIAL)
+            return urlConnection;
+        final String current = getValidator(urlConnection);
+        final String retryAfter = urlConnection.getHeaderField("Retry-After");
+        urlConnection.disconnect();
+        if (code == HttpURLConnection.HTTP_OK) {
+            // If-Range answers with the whole file when it doesn't match
+            if (validator != null && !validator.equals(current))
+                throw new RemoteChangedException();
+            throw new RangeIgnoredException();
+        }
+        throw new RetryPolicy.HttpStatusException(code, HttpURLConnection.HTTP_PARTIAL,
+                retryAfter);
+    }
+
+    /**
+     * Requests the whole file
+     * @throws RetryPolicy.HttpStatusException if the server doesn't answer with it
+     */
+    private static HttpURLConnection openRequest(String urlStr, CancellationToken token)
+            throws IOException {
+        HttpURLConnection urlConnection = openConnection(urlStr);
+        final int code = connect(urlConnection, token);
+        if (code == HttpURLConnection.HTTP_OK)
+            return urlConnection;
+        final String retryAfter = urlConnection.getHeaderField("Retry-After");
+        HttpClient.release(urlConnection);
+        throw new RetryPolicy.HttpStatusException(code, HttpURLConnection.HTTP_OK,
+                retryAfter);
+    }
+
+    /**
+     * Connects and waits for the response, unless the token is cancelled
+     * @return the response code
+     */
+    private static int connect(HttpURLConnection urlConnection, CancellationToken token)
+            throws IOException {
+        final RequestMetrics.Request request =
+                RequestMetrics.getInstance().begin(urlConnection);
+        final long start = System.nanoTime();
+        try {
+            final int code = connectUntimed(urlConnection, token);
+            request.onResponse(code, System.nanoTime() - start);
+            return code;
+        } catch (IOException e) {
+            request.onFailure();
+            throw e;
+        }
+    }
+
+    private static int connectUntimed(HttpURLConnection urlConnection, CancellationToken token)
+            throws IOException {
+        if (token == null) {
+            urlConnection.connect();
+            return urlConnection.getResponseCode();
+        }
+        token.throwIfCancelled();
+        try (CancellationToken.Registration ignored =
+                     token.register(urlConnection::disconnect)) {
+            urlConnection.connect();
+            return urlConnection.getResponseCode();
+        } finally {
+            if (token.isCancelled()) {
+                urlConnection.disconnect();
+                throw new CancellationToken.CancelledException();
+            }
+        }
+    }
+
+    /**
+     * @return the response body, with the time spent reading it recorded
+     */
+    private static InputStream getInputStream(HttpURLConnection urlConnection)
+            throws IOException {
+        return RequestMetrics.getInstance().track(urlConnection,
+                urlConnection.getInputStream());
+    }
+
+    private static HttpURLConnection openConnection(String urlStr) throws IOException {
+        HttpURLConnection urlConnection = HttpClient.getInstance().open(urlStr);
+        urlConnection.setConnectTimeout(HTTP_CONNECTION_TIMEOUT);
+        urlConnection.setReadTimeout(HTTP_READ_TIMEOUT);
+        urlConnection.setRequestMethod("GET");
+        urlConnection.setDoInput(true);
+        return urlConnection;
+    }
+
+    public static String digestToHexString(byte[] digest) {
+        final BigInteger bi = new BigInteger(1, digest);
         final StringBuilder sb = new StringBuilder(
                 bi.toString(16).toLowerCase(Locale.ENGLISH));
-        while (sb.length() < digest.getDigestLength() * 2)
+        while (sb.length() < digest.length * 2)
             sb.insert(0, "0");
         return sb.toString();
     }
+
+    public static String digestToHexString(MessageDigest digest) {
+        return digestToHexString(digest.digest());
+    }
 }
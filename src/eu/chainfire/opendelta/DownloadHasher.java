@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Hashes a .part file in order while it is being downloaded. Data is taken
+ * straight from the segment that is next in line, anything else is read back
+ * from the file once everything before it has been written.
+ * The state is checkpointed into the {@link PartInfo} so a resumed download
+ * only hashes what it hasn't seen yet. The platform digest can't be saved,
+ * so this uses {@link ResumableDigest}.
+ */
+class DownloadHasher {
+    private final ResumableDigest mDigest;
+    // only used by the thread catching up
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(FileVerifier.BLOCK_SIZE);
+    private long mOffset;
+
+    private DownloadHasher(ResumableDigest digest) {
+        mDigest = digest;
+        mOffset = digest.getCount();
+    }
+
+    /**
+     * Continues from the checkpoint saved in the info, if it's still valid
+     */
+    static DownloadHasher restore(PartInfo info) {
+        final String state = info.getHashState();
+        if (state != null) {
+            try {
+                ResumableDigest digest = ResumableDigest.fromState(state);
+                if (digest.getCount() <= info.getContiguous()) {
+                    Logger.d("Resuming hash at: " + digest.getCount());
+                    return new DownloadHasher(digest);
+                }
+            } catch (IllegalArgumentException e) {
+                Logger.ex(e);
+            }
+        }
+        return new DownloadHasher(new ResumableDigest());
+    }
+
+    synchronized long getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Hashes the given data if it is the next in line
+     * @param position offset of the data in the file
+     * @return whether the data was used
+     */
+    synchronized boolean update(long position, byte[] buffer, int offset, int len) {
+        if (position != mOffset) return false;
+        mDigest.update(buffer, offset, len);
+        mOffset += len;
+        return true;
+    }
+
+    /**
+     * Reads back and hashes data that has been written to the file but
+     * was not hashed yet
+     * @param to position up to which the file is written in one piece
+     * @param max maximum amount of bytes to read in this call
+     * @param progress optional, set to the offset reached
+     */
+    void catchUp(FileChannel channel, long to, long max, ProgressCounter progress)
+            throws IOException {
+        long read = 0;
+        long pos;
+        while ((pos = getOffset()) < to && read < max) {
+            final int r = FileVerifier.read(channel, pos, to, mBuffer);
+            // no-op when the segment got there first
+            update(pos, mBuffer.array(), 0, r);
+            read += r;
+            if (progress != null) progress.set(pos + r);
+        }
+    }
+
+    /**
+     * Saves the state into the info. Everything hashed has been written
+     * already, so it is on storage once the file is synced after this.
+     */
+    synchronized void checkpoint(PartInfo info) {
+        info.setHashState(mDigest.getState());
+    }
+
+    synchronized String finish() {
+        return Download.digestToHexString(mDigest.digest());
+    }
+}
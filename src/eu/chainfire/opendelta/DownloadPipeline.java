@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves downloaded data through separate read, write and hash stages, so a
+ * slow disk or digest doesn't keep the sockets from being read.
+ * The segments read into blocks taken from a fixed ring of buffers, one
+ * thread writes them to the file at their offsets and another one hashes
+ * them before the buffers are handed back. When all buffers are in use the readers wait,
+ * which limits the memory used and shows up in the stage statistics. The
+ * hash stage never makes them wait, blocks it can't keep up with are read
+ * back from the file later.
+ */
+class DownloadPipeline {
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int BUFFER_COUNT = 32;
+    private static final long POLL_INTERVAL = 250L;
+
+    /**
+     * Throughput of one stage, counting only the time spent working
+     */
+    static class Stage {
+        private final String mName;
+        private final AtomicLong mBytes = new AtomicLong();
+        private final AtomicLong mBusyNanos = new AtomicLong();
+        private final AtomicLong mWaitNanos = new AtomicLong();
+
+        Stage(String name) {
+            mName = name;
+        }
+
+        void addBusy(long bytes, long nanos) {
+            mBytes.addAndGet(bytes);
+            mBusyNanos.addAndGet(nanos);
+        }
+
+        void addWait(long nanos) {
+            mWaitNanos.addAndGet(nanos);
+        }
+
+        long getBytes() {
+            return mBytes.get();
+        }
+
+        /**
+         * @return bytes per second while busy
+         */
+        long getThroughput() {
+            final long busy = mBusyNanos.get();
+            return busy > 0 ? (long) (mBytes.get() * 1000000000.0 / busy) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH, "%s %.1f MB at %.1f MB/s, %d ms waiting",
+                    mName, mBytes.get() / 1048576f, getThroughput() / 1048576f,
+                    TimeUnit.NANOSECONDS.toMillis(mWaitNanos.get()));
+        }
+    }
+
+    static class Block {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        private PartInfo.Segment mSegment;
+        private long mPosition;
+        private int mLength;
+    }
+
+    private static final Block END = new Block();
+
+    private final PartFileWriter mWriter;
+    private final DownloadHasher mHasher;
+    private final ProgressCounter mReceived;
+    private final BlockingQueue<Block> mFree = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Block> mWrite = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Block> mHash = new LinkedBlockingQueue<>();
+    private final Thread mWriteThread;
+    private final Thread mHashThread;
+    private volatile Exception mFailure;
+    private volatile boolean mFinished;
+
+    final Stage read = new Stage("read");
+    final Stage write = new Stage("write");
+    final Stage hash = new Stage("hash");
+
+    /**
+     * @param hasher optional, receives the data in file order where possible
+     * @param received increased with the bytes written
+     */
+    DownloadPipeline(PartFileWriter writer, DownloadHasher hasher, ProgressCounter received) {
+        mWriter = writer;
+        mHasher = hasher;
+        mReceived = received;
+        for (int i = 0; i < BUFFER_COUNT; i++)
+            mFree.add(new Block());
+        mWriteThread = new Thread(this::writeLoop, "OpenDelta-write");
+        mHashThread = new Thread(this::hashLoop, "OpenDelta-hash");
+        mWriteThread.start();
+        mHashThread.start();
+    }
+
+    /**
+     * Takes a free buffer to read into, waiting for one if needed
+     */
+    Block obtain() throws IOException {
+        final long start = System.nanoTime();
+        try {
+            while (true) {
+                checkFailure();
+                if (mFinished) throw new IOException("Pipeline finished");
+                final Block block = mFree.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (block != null) return block;
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            read.addWait(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Hands back a buffer that was not used
+     */
+    void release(Block block) {
+        mFree.add(block);
+    }
+
+    /**
+     * Queues the data read into the block for writing
+     * @param readNanos time spent reading the data, for the statistics
+     */
+    void submit(Block block, PartInfo.Segment segment, long position, int length,
+            long readNanos) {
+        read.addBusy(length, readNanos);
+        block.mSegment = segment;
+        block.mPosition = position;
+        block.mLength = length;
+        mWrite.add(block);
+    }
+
+    /**
+     * Waits for everything queued to be written and hashed and stops the
+     * stages. Segment progress is only up to date after this returns.
+     */
+    void finish() throws IOException {
+        if (!mFinished) {
+            mFinished = true;
+            mWrite.add(END);
+            try {
+                mWriteThread.join();
+                mHashThread.join();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            Logger.d("pipeline: " + read + ", " + write + ", " + hash);
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        final Exception failure = mFailure;
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure != null) throw new IOException(failure);
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                final Block block = mWrite.take();
+                write.addWait(System.nanoTime() - start);
+                if (block == END) break;
+                if (mFailure == null) {
+                    start = System.nanoTime();
+                    mWriter.write(block.buffer, 0, block.mLength, block.mPosition);
+                    write.addBusy(block.mLength, System.nanoTime() - start);
+                    // blocks of a segment arrive in order
+                    block.mSegment.setDone(
+                            block.mPosition + block.mLength - block.mSegment.start);
+                    mReceived.add(block.mLength);
+                }
+                mHash.add(block);
+            }
+        } catch (Exception e) {
+            Logger.ex(e);
+            mFailure = e;
+        } finally {
+            mHash.add(END);
+        }
+    }
+
+    private void hashLoop() {
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                final Block block = mHash.take();
+                hash.addWait(System.nanoTime() - start);
+                if (block == END) break;
+                // data that isn't next in line is read back later, as is
+                // data piling up because the digest is the slowest stage
+                if (mHasher != null && mFailure == null
+                        && mHash.size() < BUFFER_COUNT / 2) {
+                    start = System.nanoTime();
+                    if (mHasher.update(block.mPosition, block.buffer, 0, block.mLength))
+                        hash.addBusy(block.mLength, System.nanoTime() - start);
+                }
+                block.mSegment = null;
+                mFree.add(block);
+            }
+        } catch (InterruptedException e) {
+            Logger.ex(e);
+            mFailure = e;
+        }
+    }
+}
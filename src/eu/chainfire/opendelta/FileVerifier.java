@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Hashes files the size of a build. The file is read in large blocks at
+ * block aligned offsets into a direct buffer, which the digest takes without
+ * copying it to the heap, and sequential reads of that size keep the
+ * kernel's read-ahead going. Progress goes to a ProgressCounter.
+ */
+class FileVerifier {
+    static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    static MessageDigest newSha256() throws IOException {
+        try {
+            return DigestProvider.newSha256();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * @param progress optional, set to the offset reached
+     * @param token optional, stops the read
+     * @return the SHA-256 of the file as hex string
+     */
+    static String sha256(File file, ProgressCounter progress, CancellationToken token)
+            throws IOException {
+        final MessageDigest digest = newSha256();
+        try (FileInputStream is = new FileInputStream(file);
+             FileChannel channel = is.getChannel()) {
+            final long total = channel.size();
+            if (progress != null) progress.setTotal(total);
+            update(channel, 0, total, digest, ByteBuffer.allocateDirect(BLOCK_SIZE),
+                    progress, token);
+        }
+        return Download.digestToHexString(digest);
+    }
+
+    /**
+     * Adds [start, end) of the file to the digest
+     * @param buffer used for the reads, callers hashing many ranges keep it
+     * @param progress optional, set to the offset reached
+     * @param token optional, stops the read
+     */
+    static void update(FileChannel channel, long start, long end, MessageDigest digest,
+            ByteBuffer buffer, ProgressCounter progress, CancellationToken token)
+            throws IOException {
+        long pos = start;
+        while (pos < end) {
+            if (token != null) token.throwIfCancelled();
+            pos += read(channel, pos, end, buffer);
+            digest.update(buffer);
+            if (progress != null) progress.set(pos);
+        }
+    }
+
+    /**
+     * Reads from pos up to the next block boundary, so the reads after it
+     * are aligned, or up to end if that comes first
+     * @return the amount read, the buffer is flipped for reading it
+     */
+    static int read(FileChannel channel, long pos, long end, ByteBuffer buffer)
+            throws IOException {
+        final int blockSize = buffer.capacity();
+        final long blockEnd = Math.min(end, (pos / blockSize + 1) * blockSize);
+        buffer.clear();
+        buffer.limit((int) (blockEnd - pos));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, pos + buffer.position()) <= 0)
+                throw new EOFException("Unable to read at " + (pos + buffer.position()));
+        }
+        buffer.flip();
+        return buffer.remaining();
+    }
+
+    /**
+     * Compares the throughput with the 8 KB stream loop used before. Both
+     * run once before they are timed, so the code is compiled and the file
+     * is in the page cache for either.
+     */
+    static void benchmark(File file, PrintWriter pw) throws IOException {
+        legacySha256(file);
+        sha256(file, null, null);
+        long start = System.nanoTime();
+        final String legacy = legacySha256(file);
+        final long legacyNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        final String current = sha256(file, null, null);
+        final long nanos = System.nanoTime() - start;
+        pw.println(String.format(Locale.ENGLISH, "  %s, %.1f MB", file.getName(),
+                file.length() / 1048576f));
+        pw.println(String.format(Locale.ENGLISH, "  8 KB stream: %.1f MB/s",
+                file.length() * 1000000000f / legacyNanos / 1048576f));
+        pw.println(String.format(Locale.ENGLISH, "  %d KB blocks: %.1f MB/s%s",
+                BLOCK_SIZE / 1024, file.length() * 1000000000f / nanos / 1048576f,
+                legacy.equals(current) ? "" : ", SUMS DIFFER"));
+    }
+
+    private static String legacySha256(File file) throws IOException {
+        final MessageDigest digest = newSha256();
+        try (FileInputStream is = new FileInputStream(file)) {
+            final byte[] buffer = new byte[8192];
+            int r;
+            while ((r = is.read(buffer)) > 0) digest.update(buffer, 0, r);
+        }
+        return Download.digestToHexString(digest);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the quota of the unauthenticated GitHub API, which is
+ * shared by every device behind the same address. The remaining requests
+ * and the end of the window are taken from the X-RateLimit headers of each
+ * response. Requests the check can't do without may use up the quota, others
+ * stop a few requests earlier and wait for the window to reset.
+ */
+class GitHubRateLimit {
+    private static final String HOST = "api.github.com";
+    // left to requests that are essential
+    private static final int RESERVE = 10;
+
+    /**
+     * Thrown instead of making a request that would exceed the quota
+     */
+    static class RateLimitedException extends IOException {
+        RateLimitedException(long reset) {
+            super("GitHub API rate limit reached until " + formatTime(reset));
+        }
+    }
+
+    private static final GitHubRateLimit sInstance = new GitHubRateLimit();
+
+    private int mLimit = -1;
+    // -1 while unknown
+    private int mRemaining = -1;
+    // ms since epoch
+    private long mReset;
+
+    static GitHubRateLimit getInstance() {
+        return sInstance;
+    }
+
+    static boolean isApiUrl(String urlStr) {
+        try {
+            return HOST.equalsIgnoreCase(new URL(urlStr).getHost());
+        } catch (MalformedURLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Takes a request from the quota if there is enough left
+     * @param essential whether the request may use the reserve
+     */
+    synchronized boolean tryAcquire(boolean essential) {
+        if (mRemaining < 0 || System.currentTimeMillis() >= mReset) return true;
+        if (mRemaining <= (essential ? 0 : RESERVE)) {
+            Logger.d("GitHub API: deferring %s request, %s",
+                    essential ? "essential" : "non-essential", this);
+            return false;
+        }
+        // until the response tells us the real amount
+        mRemaining--;
+        return true;
+    }
+
+    /**
+     * Takes the quota from the headers of an API response
+     */
+    synchronized void update(HttpURLConnection urlConnection) {
+        final String remaining = urlConnection.getHeaderField("X-RateLimit-Remaining");
+        final String reset = urlConnection.getHeaderField("X-RateLimit-Reset");
+        if (remaining == null || reset == null) return;
+        try {
+            mRemaining = Integer.parseInt(remaining.trim());
+            mReset = TimeUnit.SECONDS.toMillis(Long.parseLong(reset.trim()));
+            final String limit = urlConnection.getHeaderField("X-RateLimit-Limit");
+            if (limit != null) mLimit = Integer.parseInt(limit.trim());
+            Logger.d("GitHub API: %s", this);
+        } catch (NumberFormatException e) {
+            Logger.ex(e);
+        }
+    }
+
+    synchronized int getRemaining() {
+        return mRemaining;
+    }
+
+    synchronized int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * @return when the quota is reset in ms since epoch, 0 if unknown
+     */
+    synchronized long getReset() {
+        return mReset;
+    }
+
+    long getResetDelay() {
+        return Math.max(0, getReset() - System.currentTimeMillis());
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (mRemaining < 0) return "quota unknown";
+        return String.format(Locale.ENGLISH, "%d/%d requests left, reset at %s",
+                mRemaining, mLimit, formatTime(mReset));
+    }
+
+    private static String formatTime(long time) {
+        return DateFormat.getTimeInstance(DateFormat.MEDIUM, Locale.ENGLISH)
+                .format(new Date(time));
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * On disk cache of metadata responses, keyed by url. Responses are stored
+ * with their ETag and Last-Modified, which are sent back on the next
+ * request for the url. When nothing changed the server answers with a 304
+ * and the body is read from the cache.
+ * Each entry is a single file holding the url, the validators and the
+ * body, replaced atomically when a new version arrives.
+ */
+class HttpCache {
+    private static final String DIR = "http";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MAX_ENTRIES = 64;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private static HttpCache sInstance;
+
+    static class Entry {
+        private final File mFile;
+        final String etag;
+        final String lastModified;
+
+        private Entry(File file, String etag, String lastModified) {
+            mFile = file;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Makes the request conditional on the cached version
+         */
+        void addValidators(HttpURLConnection urlConnection) {
+            if (!etag.isEmpty())
+                urlConnection.setRequestProperty("If-None-Match", etag);
+            if (!lastModified.isEmpty())
+                urlConnection.setRequestProperty("If-Modified-Since", lastModified);
+        }
+
+        /**
+         * @return the cached body
+         */
+        InputStream open() throws IOException {
+            DataInputStream is = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile), BUFFER_SIZE));
+            try {
+                // url, etag, last modified
+                for (int i = 0; i < 3; i++) is.readUTF();
+            } catch (IOException e) {
+                is.close();
+                throw e;
+            }
+            return is;
+        }
+    }
+
+    /**
+     * Stores a response while it is being read
+     */
+    class Writer {
+        private final File mFile;
+        private final File mTmp;
+        private final DataOutputStream mOut;
+        private boolean mDone;
+
+        private Writer(File file, String url, String etag, String lastModified)
+                throws IOException {
+            mFile = file;
+            mTmp = File.createTempFile(file.getName(), TMP_SUFFIX, mDir);
+            mOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mTmp), BUFFER_SIZE));
+            mOut.writeUTF(url);
+            mOut.writeUTF(etag == null ? "" : etag);
+            mOut.writeUTF(lastModified == null ? "" : lastModified);
+        }
+
+        /**
+         * @return a stream copying everything read from in into the cache
+         */
+        InputStream tee(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    if (b >= 0) mOut.write(b);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    final int r = super.read(b, off, len);
+                    if (r > 0) mOut.write(b, off, r);
+                    return r;
+                }
+            };
+        }
+
+        /**
+         * Reads what the consumer left of the stream and makes the entry
+         * available
+         */
+        void commit(InputStream tee) throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (tee.read(buffer) >= 0);
+            mOut.close();
+            mDone = true;
+            if (!mTmp.renameTo(mFile)) {
+                mTmp.delete();
+                throw new IOException("Failed to rename " + mTmp);
+            }
+            trim();
+        }
+
+        /**
+         * Throws away what was stored, unless it was committed
+         */
+        void abort() {
+            if (mDone) return;
+            mDone = true;
+            try { mOut.close(); } catch (IOException ignored) {}
+            mTmp.delete();
+        }
+    }
+
+    private final File mDir;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    private HttpCache(File dir) {
+        mDir = dir;
+    }
+
+    static synchronized void init(File cacheDir) {
+        if (sInstance != null) return;
+        final File dir = new File(cacheDir, DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Logger.i("Unable to create " + dir);
+            return;
+        }
+        // left behind by a process that died while storing
+        File[] tmps = dir.listFiles((d, name) -> name.endsWith(TMP_SUFFIX));
+        if (tmps != null)
+            for (File tmp : tmps) tmp.delete();
+        sInstance = new HttpCache(dir);
+    }
+
+    /**
+     * @return the cache, or null if it isn't available
+     */
+    static synchronized HttpCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return the cached response for the url, or null if there is none
+     */
+    Entry get(String url) {
+        final File file = getFile(url);
+        if (!file.exists()) return null;
+        try (DataInputStream is = new DataInputStream(new FileInputStream(file))) {
+            // a different url with the same hash
+            if (!url.equals(is.readUTF())) return null;
+            final String etag = is.readUTF();
+            final String lastModified = is.readUTF();
+            if (etag.isEmpty() && lastModified.isEmpty()) return null;
+            return new Entry(file, etag, lastModified);
+        } catch (IOException e) {
+            Logger.ex(e);
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * @return a writer for the response, or null if the response can't be
+     *         revalidated and isn't worth keeping
+     */
+    Writer newWriter(String url, HttpURLConnection urlConnection) throws IOException {
+        final String etag = urlConnection.getHeaderField("ETag");
+        final String lastModified = urlConnection.getHeaderField("Last-Modified");
+        if (etag == null && lastModified == null) return null;
+        return new Writer(getFile(url), url, etag, lastModified);
+    }
+
+    void onHit() {
+        mHits.incrementAndGet();
+    }
+
+    void onMiss() {
+        mMisses.incrementAndGet();
+    }
+
+    long getHits() {
+        return mHits.get();
+    }
+
+    long getMisses() {
+        return mMisses.get();
+    }
+
+    private File getFile(String url) {
+        try {
+            MessageDigest digest = DigestProvider.newSha256();
+            digest.update(url.getBytes(StandardCharsets.UTF_8));
+            return new File(mDir, Download.digestToHexString(digest));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Drops the least recently stored entries beyond the limit
+     */
+    private synchronized void trim() {
+        File[] files = mDir.listFiles((d, name) -> !name.endsWith(TMP_SUFFIX));
+        if (files == null || files.length <= MAX_ENTRIES) return;
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < files.length - MAX_ENTRIES; i++)
+            files[i].delete();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import android.content.Context;
+import android.net.http.HttpEngine;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens every connection of the app, so they share one pool. Connections to
+ * the same host are kept alive and their TLS sessions resumed, and where the
+ * platform's HttpEngine is available requests are multiplexed over HTTP/2
+ * (or QUIC) when the server supports it.
+ * A connection only goes back to the pool when its response was read
+ * completely, which is what release() takes care of.
+ */
+class HttpClient {
+    // left of a response that is read to keep the connection
+    private static final int DRAIN_LIMIT = 64 * 1024;
+
+    private static HttpClient sInstance;
+
+    private final Transport mTransport;
+
+    private HttpClient(Transport transport) {
+        mTransport = transport;
+    }
+
+    static synchronized void init(Context context) {
+        if (sInstance != null) return;
+        HttpEngine engine = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.UPSIDE_DOWN_CAKE) {
+            try {
+                engine = new HttpEngine.Builder(context)
+                        .setEnableHttp2(true)
+                        .setEnableQuic(true)
+                        .build();
+            } catch (Exception e) {
+                // falls back to the platform's connections, which are pooled too
+                Logger.ex(e);
+            }
+        }
+        Logger.d("HttpClient: " + (engine != null ? "HttpEngine " + HttpEngine.getVersionString()
+                : "HttpURLConnection"));
+        sInstance = new HttpClient(engine != null ? engineTransport(engine)
+                : HttpClient::platformTransport);
+    }
+
+    static synchronized HttpClient getInstance() {
+        if (sInstance == null) sInstance = new HttpClient(HttpClient::platformTransport);
+        return sInstance;
+    }
+
+    /**
+     * Opens all connections with the given transport instead, for tests
+     */
+    static synchronized void setTransport(Transport transport) {
+        sInstance = new HttpClient(transport);
+    }
+
+    private static Transport engineTransport(HttpEngine engine) {
+        return url -> (HttpURLConnection) engine.openConnection(url);
+    }
+
+    private static HttpURLConnection platformTransport(URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    HttpURLConnection open(String urlStr) throws IOException {
+        return mTransport.open(new URL(urlStr));
+    }
+
+    /**
+     * Reads what is left of a small response and closes the connection, so
+     * it can be used for the next request to the host. Only for connections
+     * that didn't fail, those should just be disconnected.
+     */
+    static void release(HttpURLConnection urlConnection) {
+        try {
+            InputStream is;
+            try {
+                is = urlConnection.getInputStream();
+            } catch (IOException e) {
+                // an error response has its body here
+                is = urlConnection.getErrorStream();
+            }
+            if (is != null) {
+                try {
+                    final byte[] buffer = new byte[8192];
+                    int left = DRAIN_LIMIT;
+                    int r;
+                    while (left > 0 && (r = is.read(buffer, 0,
+                            Math.min(buffer.length, left))) >= 0)
+                        left -= r;
+                } finally {
+                    is.close();
+                }
+            }
+        } catch (IOException e) {
+            // nothing to keep
+        } finally {
+            urlConnection.disconnect();
+        }
+    }
+}
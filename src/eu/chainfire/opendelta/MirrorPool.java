@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The locations a build can be downloaded from. Every mirror is ranked by
+ * the round trip and throughput seen while probing it and while it serves
+ * segments, and segments go to the best mirror that isn't already busy.
+ * A mirror failing repeatedly is dropped, one that falls far behind the
+ * others hands its segments over.
+ * The primary location is the one the download state belongs to, the
+ * others only have to serve a file of the same size, the sum decides
+ * whether the result is right.
+ */
+class MirrorPool {
+    // data a segment is expected to take from a mirror, for the ranking
+    private static final long SCORE_SIZE = 4L * 1024L * 1024L;
+    private static final int MAX_FAILURES = 3;
+    // a mirror this many times slower than the best one hands its segments over
+    private static final int SLOW_FACTOR = 4;
+
+    static class Mirror {
+        final String url;
+        final boolean primary;
+        private long mRttNanos = -1;
+        private long mBytes;
+        private long mNanos;
+        private int mActive;
+        private int mFailures;
+        private boolean mDisabled;
+
+        private Mirror(String url, boolean primary) {
+            this.url = url;
+            this.primary = primary;
+        }
+
+        synchronized void onProbe(long rttNanos, long bytes, long nanos) {
+            mRttNanos = rttNanos;
+            addTransfer(bytes, nanos);
+        }
+
+        synchronized void addTransfer(long bytes, long nanos) {
+            mBytes += bytes;
+            mNanos += nanos;
+        }
+
+        /**
+         * @return bytes per second, 0 while unknown
+         */
+        synchronized long getThroughput() {
+            return mNanos > 0 ? (long) (mBytes * 1000000000.0 / mNanos) : 0;
+        }
+
+        /**
+         * @return seconds a segment is expected to take, lower is better
+         */
+        synchronized double getScore() {
+            final long throughput = getThroughput();
+            final double rtt = mRttNanos >= 0 ? mRttNanos / 1000000000.0 : 0;
+            // unknown mirrors are tried after the ones known to work
+            if (throughput == 0) return rtt + 60;
+            return rtt + (double) SCORE_SIZE / throughput;
+        }
+
+        synchronized void onSuccess() {
+            mFailures = 0;
+        }
+
+        synchronized void onFailure() {
+            if (++mFailures >= MAX_FAILURES) disable();
+        }
+
+        synchronized void disable() {
+            mDisabled = true;
+        }
+
+        synchronized boolean isDisabled() {
+            return mDisabled;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format(Locale.ENGLISH, "%s: %s%d ms, %.1f MB/s, %d failures",
+                    url, mDisabled ? "disabled, " : "", mRttNanos / 1000000,
+                    getThroughput() / 1048576f, mFailures);
+        }
+    }
+
+    private final List<Mirror> mMirrors = new ArrayList<>();
+    private final long mTotal;
+
+    /**
+     * @param mirrors other locations of the file, duplicates are ignored
+     * @param total size of the file every mirror has to serve
+     */
+    MirrorPool(String primary, List<String> mirrors, long total) {
+        mTotal = total;
+        mMirrors.add(new Mirror(primary, true));
+        for (String url : mirrors) {
+            if (url == null || url.isEmpty() || find(url) != null) continue;
+            mMirrors.add(new Mirror(url, false));
+        }
+    }
+
+    private Mirror find(String url) {
+        for (Mirror mirror : mMirrors)
+            if (mirror.url.equals(url)) return mirror;
+        return null;
+    }
+
+    int size() {
+        return mMirrors.size();
+    }
+
+    Mirror getPrimary() {
+        return mMirrors.get(0);
+    }
+
+    long getTotal() {
+        return mTotal;
+    }
+
+    List<Mirror> getMirrors() {
+        return Collections.unmodifiableList(mMirrors);
+    }
+
+    /**
+     * Picks the mirror for a segment, spreading the segments over the
+     * mirrors by how fast they are
+     * @param avoid the mirror that just failed the segment, used only if
+     *              there is no other one
+     * @return the mirror, release() it when done. Null if all mirrors
+     *         are disabled.
+     */
+    synchronized Mirror acquire(Mirror avoid) {
+        Mirror best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Mirror mirror : mMirrors) {
+            if (mirror == avoid || mirror.isDisabled()) continue;
+            // a mirror serving two segments takes about twice as long for each
+            final double score = mirror.getScore() * (1 + mirror.mActive);
+            if (score < bestScore) {
+                best = mirror;
+                bestScore = score;
+            }
+        }
+        if (best == null && avoid != null && !avoid.isDisabled()) best = avoid;
+        if (best != null) best.mActive++;
+        return best;
+    }
+
+    /**
+     * Takes the given mirror for a segment, like acquire() does
+     */
+    synchronized Mirror claim(Mirror mirror) {
+        mirror.mActive++;
+        return mirror;
+    }
+
+    synchronized void release(Mirror mirror) {
+        mirror.mActive--;
+    }
+
+    /**
+     * @param rate bytes per second the mirror currently delivers
+     * @return whether another mirror is so much faster that the segment
+     *         should move there
+     */
+    boolean isSlow(Mirror mirror, long rate) {
+        if (mMirrors.size() < 2) return false;
+        long best = 0;
+        for (Mirror other : mMirrors) {
+            if (other == mirror || other.isDisabled()) continue;
+            best = Math.max(best, other.getThroughput());
+        }
+        return best > 0 && rate * SLOW_FACTOR < best;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Mirror mirror : mMirrors) {
+            if (sb.length() > 0) sb.append("; ");
+            sb.append(mirror);
+        }
+        return sb.toString();
+    }
+}
@@ -24,6 +24,7 @@ package eu.chainfire.opendelta;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.Network;
+import android.net.NetworkCapabilities;
 
 public class NetworkState {
     public interface OnNetworkStateListener {
@@ -50,13 +51,20 @@ public class NetworkState {
             mIsConnected = false;
             updateState();
         }
+
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            updateState();
+        }
     };
 
     private void updateState() {
+        final boolean wasMetered = mIsMetered;
         mIsMetered = mConnectivityManager.isActiveNetworkMetered();
         boolean state = (!mIsMetered || mIsMeteredAllowed) && mIsConnected;
 
-        if (stateLast != null && stateLast == state) return;
+        // also report switching between metered and unmetered networks
+        if (stateLast != null && stateLast == state && wasMetered == mIsMetered) return;
         stateLast = state;
 
         if (onNetworkStateListener == null) return;
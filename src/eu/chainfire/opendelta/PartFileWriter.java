@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a .part file at explicit offsets. The space for the complete file
+ * can be reserved up front, so running out of it shows right away instead
+ * of somewhere during the download, and the file isn't fragmented by the
+ * segments growing it at different places.
+ */
+class PartFileWriter implements Closeable {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    static class DiskFullException extends IOException {
+        DiskFullException(Throwable cause) {
+            super("Not enough space to reserve the download", cause);
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    // only used by the thread writing
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    PartFileWriter(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+    }
+
+    /**
+     * The channel can be used to read back what was written
+     */
+    FileChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Reserves space for a file of the given size, keeping what has been
+     * written already
+     * @return false if the filesystem doesn't support reserving space
+     * @throws DiskFullException if there is not enough space
+     */
+    boolean preallocate(long len) throws IOException {
+        try {
+            Os.posix_fallocate(mFile.getFD(), 0, len);
+            return true;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC)
+                throw new DiskFullException(e);
+            if (e.errno == OsConstants.EOPNOTSUPP || e.errno == OsConstants.ENOSYS
+                    || e.errno == OsConstants.EINVAL) {
+                Logger.d("Unable to preallocate, errno " + e.errno);
+                return false;
+            }
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    /**
+     * Writes the data at the given position of the file
+     */
+    void write(byte[] buffer, int offset, int len, long position) throws IOException {
+        while (len > 0) {
+            final int n = Math.min(len, mBuffer.capacity());
+            mBuffer.clear();
+            mBuffer.put(buffer, offset, n);
+            mBuffer.flip();
+            while (mBuffer.hasRemaining())
+                position += mChannel.write(mBuffer, position);
+            offset += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Flushes the written data to storage, without the metadata where possible
+     */
+    void sync() throws IOException {
+        mChannel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
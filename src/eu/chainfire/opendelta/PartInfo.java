@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Sidecar of a .part file, keeping track of what has been downloaded so far.
+ * Stored next to the .part file so a download can be resumed per segment,
+ * even after the process was killed.
+ */
+class PartInfo {
+    private static final String SUFFIX = ".info";
+    private static final String KEY_URL = "url";
+    private static final String KEY_TOTAL = "total";
+    private static final String KEY_VALIDATOR = "validator";
+    private static final String KEY_SEGMENTS = "segments";
+    private static final String KEY_SEGMENT = "segment.";
+    private static final String KEY_HASH_STATE = "hash.state";
+    private static final String KEY_CHUNKS_VERIFIED = "chunks.verified";
+
+    static class Segment {
+        final long start;
+        final long end; // exclusive
+        private volatile long done;
+        // part of done known to be on storage
+        private volatile long durable;
+
+        Segment(long start, long end, long done) {
+            this.start = start;
+            this.end = end;
+            this.done = done;
+            this.durable = done;
+        }
+
+        long getDone() {
+            return done;
+        }
+
+        void setDone(long done) {
+            this.done = done;
+        }
+
+        long getPosition() {
+            return start + done;
+        }
+
+        long getDurable() {
+            return durable;
+        }
+
+        boolean isComplete() {
+            return start + done >= end;
+        }
+    }
+
+    private final File mPartFile;
+    private final String mUrl;
+    private final long mTotal;
+    private final List<Segment> mSegments;
+    private String mValidator;
+    private String mHashState;
+    private final BitSet mChunksVerified = new BitSet();
+
+    private PartInfo(File partFile, String url, long total, List<Segment> segments) {
+        mPartFile = partFile;
+        mUrl = url;
+        mTotal = total;
+        mSegments = Collections.unmodifiableList(segments);
+    }
+
+    /**
+     * Splits a new download into (at most) the given amount of segments
+     * @param partFile the .part file this info belongs to
+     * @param url the url being downloaded
+     * @param total size of the complete file
+     * @param count amount of segments wanted
+     * @param minSize smallest size a segment may have
+     * @return the new info, not saved yet
+     */
+    static PartInfo create(File partFile, String url, long total, int count, long minSize) {
+        count = (int) Math.max(1, Math.min(count, total / minSize));
+        final long size = total / count;
+        List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final long start = i * size;
+            final long end = i == count - 1 ? total : start + size;
+            segments.add(new Segment(start, end, 0));
+        }
+        return new PartInfo(partFile, url, total, segments);
+    }
+
+    /**
+     * Creates info for a download done in one piece
+     */
+    static PartInfo createContinuous(File partFile, String url, long total) {
+        List<Segment> segments = new ArrayList<>();
+        segments.add(new Segment(0, total, 0));
+        return new PartInfo(partFile, url, total, segments);
+    }
+
+    /**
+     * @return the saved info of the given .part file, or null if there is
+     *         none or it can't be read
+     */
+    static PartInfo load(File partFile) {
+        final File file = getFile(partFile);
+        if (!file.exists()) return null;
+        Properties props = new Properties();
+        try (FileInputStream is = new FileInputStream(file)) {
+            props.load(is);
+            final String url = props.getProperty(KEY_URL);
+            final long total = Long.parseLong(props.getProperty(KEY_TOTAL));
+            final int count = Integer.parseInt(props.getProperty(KEY_SEGMENTS));
+            List<Segment> segments = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                final String[] parts = props.getProperty(KEY_SEGMENT + i).split(",");
+                final long start = Long.parseLong(parts[0]);
+                final long end = Long.parseLong(parts[1]);
+                final long done = Long.parseLong(parts[2]);
+                if (start < 0 || end > total || start > end || done < 0 || done > end - start)
+                    throw new IOException("Invalid segment " + i);
+                segments.add(new Segment(start, end, done));
+            }
+            PartInfo info = new PartInfo(partFile, url, total, segments);
+            info.mValidator = props.getProperty(KEY_VALIDATOR);
+            info.mHashState = props.getProperty(KEY_HASH_STATE);
+            final String verified = props.getProperty(KEY_CHUNKS_VERIFIED);
+            if (verified != null)
+                info.mChunksVerified.or(BitSet.valueOf(Base64.getDecoder().decode(verified)));
+            return info;
+        } catch (Exception e) {
+            Logger.ex(e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the info next to its .part file. The file is replaced
+     * atomically, so a crash never leaves a half written info behind.
+     * Only the durable progress of the segments is saved, see
+     * {@link #setDurable(long[])}.
+     */
+    synchronized void save() throws IOException {
+        Properties props = new Properties();
+        props.setProperty(KEY_URL, mUrl);
+        props.setProperty(KEY_TOTAL, String.valueOf(mTotal));
+        if (mValidator != null)
+            props.setProperty(KEY_VALIDATOR, mValidator);
+        props.setProperty(KEY_SEGMENTS, String.valueOf(mSegments.size()));
+        for (int i = 0; i < mSegments.size(); i++) {
+            final Segment segment = mSegments.get(i);
+            props.setProperty(KEY_SEGMENT + i,
+                    segment.start + "," + segment.end + "," + segment.getDurable());
+        }
+        if (mHashState != null)
+            props.setProperty(KEY_HASH_STATE, mHashState);
+        if (!mChunksVerified.isEmpty()) {
+            props.setProperty(KEY_CHUNKS_VERIFIED,
+                    Base64.getEncoder().encodeToString(mChunksVerified.toByteArray()));
+        }
+        final File file = getFile(mPartFile);
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(tmp, false)) {
+            props.store(os, null);
+            os.getFD().sync();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Failed to rename " + tmp);
+    }
+
+    String getUrl() {
+        return mUrl;
+    }
+
+    long getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * @return ETag or Last-Modified of the file the segments belong to
+     */
+    synchronized String getValidator() {
+        return mValidator;
+    }
+
+    synchronized void setValidator(String validator) {
+        mValidator = validator;
+    }
+
+    List<Segment> getSegments() {
+        return mSegments;
+    }
+
+    long getDownloaded() {
+        long downloaded = 0;
+        for (Segment segment : mSegments)
+            downloaded += segment.getDone();
+        return downloaded;
+    }
+
+    /**
+     * @return the end of the data downloaded in one piece from the start
+     */
+    long getContiguous() {
+        for (Segment segment : mSegments)
+            if (!segment.isComplete()) return segment.getPosition();
+        return mTotal;
+    }
+
+    /**
+     * @return the progress of every segment, to be passed to
+     *         {@link #setDurable(long[])} once the data is synced
+     */
+    long[] snapshot() {
+        long[] done = new long[mSegments.size()];
+        for (int i = 0; i < done.length; i++)
+            done[i] = mSegments.get(i).getDone();
+        return done;
+    }
+
+    /**
+     * Marks the progress taken with {@link #snapshot()} as safely on storage
+     */
+    void setDurable(long[] done) {
+        for (int i = 0; i < done.length; i++)
+            mSegments.get(i).durable = done[i];
+    }
+
+    /**
+     * @return whether everything between start and end (exclusive) has been written
+     */
+    boolean isWritten(long start, long end) {
+        for (Segment segment : mSegments) {
+            if (start >= end) break;
+            if (segment.end <= start) continue;
+            if (segment.start > start) return false;
+            start = Math.min(end, segment.getPosition());
+            if (start < Math.min(end, segment.end)) return false;
+        }
+        return start >= end;
+    }
+
+    /**
+     * @return the saved {@link ResumableDigest} state of the data from the
+     *         start of the file, null if there is none
+     */
+    synchronized String getHashState() {
+        return mHashState;
+    }
+
+    synchronized void setHashState(String state) {
+        mHashState = state;
+    }
+
+    synchronized void setChunkVerified(int index) {
+        mChunksVerified.set(index);
+    }
+
+    synchronized boolean isChunkVerified(int index) {
+        return mChunksVerified.get(index);
+    }
+
+    boolean isComplete() {
+        for (Segment segment : mSegments)
+            if (!segment.isComplete()) return false;
+        return true;
+    }
+
+    /**
+     * @return the amount of bytes downloaded into the given .part file, 0
+     *         without a valid info as the download starts over then
+     */
+    static long getDownloaded(File partFile) {
+        PartInfo info = load(partFile);
+        if (info != null) return info.getDownloaded();
+        return 0;
+    }
+
+    static File getFile(File partFile) {
+        return new File(partFile.getPath() + SUFFIX);
+    }
+
+    static void delete(File partFile) {
+        final File file = getFile(partFile);
+        if (file.exists()) file.delete();
+    }
+}
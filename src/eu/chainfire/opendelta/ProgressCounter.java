@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a long running job, bumped by the threads doing the work
+ * without allocating or locking. Nothing is published from there, the
+ * ProgressSampler reads the counter at a fixed rate instead.
+ */
+class ProgressCounter {
+    private final AtomicLong mCurrent = new AtomicLong();
+    private volatile long mTotal;
+
+    ProgressCounter(long total) {
+        mTotal = total;
+    }
+
+    void add(long n) {
+        mCurrent.addAndGet(n);
+    }
+
+    void set(long current) {
+        mCurrent.set(current);
+    }
+
+    long get() {
+        return mCurrent.get();
+    }
+
+    void setTotal(long total) {
+        mTotal = total;
+    }
+
+    long getTotal() {
+        return mTotal;
+    }
+
+    static float getPercent(long current, long total) {
+        return total > 0 ? (float) current / (float) total * 100f : 0f;
+    }
+}
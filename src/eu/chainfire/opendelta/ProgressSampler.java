@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import eu.chainfire.opendelta.UpdateService.ProgressListener;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the progress counters of the running jobs to the state and the
+ * notifications, from a single thread at a fixed frame rate. A counter is
+ * only published when it changed, and once more when its job is done. The
+ * thread doesn't wake up while nothing is running.
+ */
+class ProgressSampler {
+    static final long FRAME_MS = 250L;
+
+    private static final ProgressSampler sInstance = new ProgressSampler();
+
+    interface Sink {
+        void publish(long current, long total);
+    }
+
+    /**
+     * A counter being published, close it when the job is done
+     */
+    class Registration implements AutoCloseable {
+        private final ProgressCounter mCounter;
+        private final Sink mSink;
+        private long mLastCurrent = -1;
+        private long mLastTotal = -1;
+        private boolean mClosed;
+
+        private Registration(ProgressCounter counter, Sink sink) {
+            mCounter = counter;
+            mSink = sink;
+        }
+
+        private synchronized void sample(boolean force) {
+            if (mClosed) return;
+            final long current = mCounter.get();
+            final long total = mCounter.getTotal();
+            if (!force && current == mLastCurrent && total == mLastTotal) return;
+            mLastCurrent = current;
+            mLastTotal = total;
+            mSink.publish(current, total);
+        }
+
+        /**
+         * Publishes the final value, nothing is published after
+         */
+        @Override
+        public void close() {
+            stop(this);
+            synchronized (this) {
+                sample(true);
+                mClosed = true;
+            }
+        }
+    }
+
+    private final List<Registration> mActive = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mFrame;
+
+    static ProgressSampler getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param sink null if nobody is interested
+     * @return the registration, null if there is no sink
+     */
+    synchronized Registration start(ProgressCounter counter, Sink sink) {
+        if (sink == null) return null;
+        final Registration registration = new Registration(counter, sink);
+        registration.sample(true);
+        mActive.add(registration);
+        if (mFrame == null) {
+            if (mExecutor == null) {
+                mExecutor = Executors.newSingleThreadScheduledExecutor(
+                        r -> new Thread(r, "OpenDelta-progress"));
+            }
+            mFrame = mExecutor.scheduleAtFixedRate(this::frame, FRAME_MS, FRAME_MS,
+                    TimeUnit.MILLISECONDS);
+        }
+        return registration;
+    }
+
+    /**
+     * Publishes the counter to a listener as percentage, current and total
+     */
+    Registration start(ProgressCounter counter, ProgressListener listener) {
+        if (listener == null) return null;
+        return start(counter, (current, total) -> listener.onProgress(
+                ProgressCounter.getPercent(current, total), current, total));
+    }
+
+    private synchronized void stop(Registration registration) {
+        mActive.remove(registration);
+        if (mActive.isEmpty() && mFrame != null) {
+            mFrame.cancel(false);
+            mFrame = null;
+        }
+    }
+
+    private void frame() {
+        for (Registration registration : mActive) {
+            try {
+                registration.sample(false);
+            } catch (RuntimeException e) {
+                // a failing sink must not stop the others
+                Logger.ex(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+/**
+ * Token bucket shared by all connections of a download. Tokens refill at
+ * the configured rate and up to one second worth can be saved up. A read
+ * may take more than is available, later reads then wait until the debt
+ * is paid off. The rate can be changed at any time and applies to the
+ * next read, the connections are not touched.
+ */
+class RateLimiter {
+    private static final long MAX_SLEEP = 100L;
+
+    private long mRate; // bytes per second, 0 is unlimited
+    private double mTokens;
+    private long mLast = System.nanoTime();
+
+    /**
+     * Changing the rate starts over with an empty bucket, neither savings
+     * nor debt made at the old rate carry over
+     */
+    synchronized void setRate(long bytesPerSecond) {
+        bytesPerSecond = Math.max(0, bytesPerSecond);
+        if (bytesPerSecond == mRate) return;
+        mRate = bytesPerSecond;
+        mTokens = 0;
+        mLast = System.nanoTime();
+    }
+
+    synchronized long getRate() {
+        return mRate;
+    }
+
+    /**
+     * Takes the tokens for the given amount of bytes, waiting as long as
+     * the bucket is in debt
+     */
+    void acquire(int bytes, CancellationToken token) throws CancellationToken.CancelledException {
+        while (true) {
+            final long wait;
+            synchronized (this) {
+                if (mRate == 0) return;
+                refill();
+                if (mTokens >= 0) {
+                    mTokens -= bytes;
+                    return;
+                }
+                wait = (long) Math.ceil(-mTokens * 1000.0 / mRate);
+            }
+            token.throwIfCancelled();
+            try {
+                // short naps, the rate may be raised meanwhile
+                Thread.sleep(Math.max(1, Math.min(wait, MAX_SLEEP)));
+            } catch (InterruptedException e) {
+                throw new CancellationToken.CancelledException();
+            }
+        }
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        if (mRate > 0)
+            mTokens = Math.min(mRate, mTokens + (now - mLast) * mRate / 1000000000.0);
+        mLast = now;
+    }
+}
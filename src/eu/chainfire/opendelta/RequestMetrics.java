@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings of the last requests, to tell a slow server or mirror apart. Per
+ * request the time until the response headers arrived and the time spent
+ * reading the body are kept.
+ * Neither HttpURLConnection nor HttpEngine report the host lookup, TCP and
+ * TLS handshakes on their own, they are part of the time to the headers,
+ * which is short when a pooled connection was used.
+ */
+class RequestMetrics {
+    static final int HISTORY = 200;
+
+    private static final RequestMetrics sInstance = new RequestMetrics();
+
+    static class Request {
+        final String host;
+        // host lookup, connect, TLS handshake and time to first byte
+        private volatile long mResponseNanos = -1;
+        private volatile int mCode = -1;
+        private volatile boolean mFailed;
+        private final AtomicLong mTransferNanos = new AtomicLong();
+        private final AtomicLong mBytes = new AtomicLong();
+
+        private Request(String host) {
+            this.host = host;
+        }
+
+        void onResponse(int code, long nanos) {
+            mCode = code;
+            mResponseNanos = nanos;
+        }
+
+        void onFailure() {
+            mFailed = true;
+        }
+    }
+
+    private final ArrayDeque<Request> mHistory = new ArrayDeque<>();
+    // requests of which the body may still be read
+    private final Map<HttpURLConnection, Request> mOpen = new WeakHashMap<>();
+
+    static RequestMetrics getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Starts timing a request
+     */
+    Request begin(HttpURLConnection urlConnection) {
+        final Request request = new Request(urlConnection.getURL().getHost());
+        synchronized (this) {
+            if (mHistory.size() >= HISTORY) mHistory.removeFirst();
+            mHistory.addLast(request);
+            mOpen.put(urlConnection, request);
+        }
+        return request;
+    }
+
+    /**
+     * @return the body of the response, counting the bytes and the time
+     *         spent reading them
+     */
+    InputStream track(HttpURLConnection urlConnection, InputStream is) {
+        final Request request;
+        synchronized (this) {
+            request = mOpen.remove(urlConnection);
+        }
+        if (request == null) return is;
+        return new FilterInputStream(is) {
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final long start = System.nanoTime();
+                try {
+                    final int r = super.read(b, off, len);
+                    if (r > 0) request.mBytes.addAndGet(r);
+                    return r;
+                } catch (IOException e) {
+                    request.onFailure();
+                    throw e;
+                } finally {
+                    request.mTransferNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+        };
+    }
+
+    /**
+     * Writes percentiles per host for the diagnostics
+     */
+    void dump(PrintWriter pw) {
+        final Map<String, List<Request>> byHost = new LinkedHashMap<>();
+        synchronized (this) {
+            for (Request request : mHistory)
+                byHost.computeIfAbsent(request.host, k -> new ArrayList<>()).add(request);
+        }
+        if (byHost.isEmpty()) {
+            pw.println("  no requests");
+            return;
+        }
+        for (Map.Entry<String, List<Request>> entry : byHost.entrySet()) {
+            final List<Request> requests = entry.getValue();
+            final long[] response = new long[requests.size()];
+            final long[] transfer = new long[requests.size()];
+            int responses = 0;
+            int transfers = 0;
+            int failures = 0;
+            long bytes = 0;
+            long transferNanos = 0;
+            for (int i = 0; i < requests.size(); i++) {
+                final Request request = requests.get(i);
+                if (request.mResponseNanos >= 0) response[responses++] = request.mResponseNanos;
+                final long requestBytes = request.mBytes.get();
+                if (requestBytes > 0) {
+                    transfer[transfers++] = request.mTransferNanos.get();
+                    bytes += requestBytes;
+                    transferNanos += request.mTransferNanos.get();
+                }
+                if (request.mFailed || request.mCode >= 400) failures++;
+            }
+            pw.println(String.format(Locale.ENGLISH,
+                    "  %s: %d requests, %d failed, %.1f MB at %.1f MB/s",
+                    entry.getKey(), requests.size(), failures, bytes / 1048576f,
+                    transferNanos > 0 ? bytes * 1000000000f / transferNanos / 1048576f : 0f));
+            pw.println("    response " + percentiles(response, responses));
+            pw.println("    transfer " + percentiles(transfer, transfers));
+        }
+    }
+
+    private static String percentiles(long[] nanos, int count) {
+        if (count == 0) return "-";
+        final long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        return String.format(Locale.ENGLISH, "p50 %d ms, p90 %d ms, p99 %d ms, max %d ms",
+                toMillis(sorted, 0.5), toMillis(sorted, 0.9), toMillis(sorted, 0.99),
+                TimeUnit.NANOSECONDS.toMillis(sorted[count - 1]));
+    }
+
+    private static long toMillis(long[] sorted, double percentile) {
+        final int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, index)]);
+    }
+}
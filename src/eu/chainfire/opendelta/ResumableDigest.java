@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import java.util.Locale;
+
+/**
+ * SHA-256 (FIPS 180-4) whose internal state can be exported and restored.
+ * MessageDigest can't be persisted, this allows a download to continue
+ * hashing where it left off before a pause or process death.
+ */
+class ResumableDigest {
+    private static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] INITIAL = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private static final int BLOCK_SIZE = 64;
+
+    private final int[] mH = new int[8];
+    private final int[] mW = new int[64];
+    private final byte[] mBuffer = new byte[BLOCK_SIZE];
+    private int mBufferLen;
+    private long mCount;
+
+    ResumableDigest() {
+        reset();
+    }
+
+    void reset() {
+        System.arraycopy(INITIAL, 0, mH, 0, mH.length);
+        mBufferLen = 0;
+        mCount = 0;
+    }
+
+    /**
+     * @return the amount of bytes hashed so far
+     */
+    long getCount() {
+        return mCount;
+    }
+
+    void update(byte[] input, int offset, int len) {
+        mCount += len;
+        if (mBufferLen > 0) {
+            final int n = Math.min(len, BLOCK_SIZE - mBufferLen);
+            System.arraycopy(input, offset, mBuffer, mBufferLen, n);
+            mBufferLen += n;
+            offset += n;
+            len -= n;
+            if (mBufferLen < BLOCK_SIZE) return;
+            processBlock(mBuffer, 0);
+            mBufferLen = 0;
+        }
+        while (len >= BLOCK_SIZE) {
+            processBlock(input, offset);
+            offset += BLOCK_SIZE;
+            len -= BLOCK_SIZE;
+        }
+        if (len > 0) {
+            System.arraycopy(input, offset, mBuffer, 0, len);
+            mBufferLen = len;
+        }
+    }
+
+    /**
+     * Completes the hash and resets the digest
+     */
+    byte[] digest() {
+        final long bits = mCount * 8;
+        byte[] padding = new byte[(mBufferLen < 56 ? 56 : 120) - mBufferLen + 8];
+        padding[0] = (byte) 0x80;
+        for (int i = 0; i < 8; i++)
+            padding[padding.length - 1 - i] = (byte) (bits >>> (8 * i));
+        update(padding, 0, padding.length);
+
+        byte[] out = new byte[32];
+        for (int i = 0; i < 8; i++) {
+            out[i * 4] = (byte) (mH[i] >>> 24);
+            out[i * 4 + 1] = (byte) (mH[i] >>> 16);
+            out[i * 4 + 2] = (byte) (mH[i] >>> 8);
+            out[i * 4 + 3] = (byte) mH[i];
+        }
+        reset();
+        return out;
+    }
+
+    /**
+     * @return the internal state, to be restored with {@link #fromState(String)}
+     */
+    String getState() {
+        StringBuilder sb = new StringBuilder();
+        for (int h : mH)
+            sb.append(String.format(Locale.ENGLISH, "%08x", h));
+        sb.append(String.format(Locale.ENGLISH, "%016x", mCount));
+        for (int i = 0; i < mBufferLen; i++)
+            sb.append(String.format(Locale.ENGLISH, "%02x", mBuffer[i]));
+        return sb.toString();
+    }
+
+    static ResumableDigest fromState(String state) {
+        if (state == null || state.length() < 80 || state.length() % 2 != 0)
+            throw new IllegalArgumentException("Invalid digest state");
+        ResumableDigest digest = new ResumableDigest();
+        for (int i = 0; i < 8; i++)
+            digest.mH[i] = Integer.parseUnsignedInt(state.substring(i * 8, i * 8 + 8), 16);
+        digest.mCount = Long.parseUnsignedLong(state.substring(64, 80), 16);
+        digest.mBufferLen = (state.length() - 80) / 2;
+        if (digest.mBufferLen >= BLOCK_SIZE || digest.mCount % BLOCK_SIZE != digest.mBufferLen)
+            throw new IllegalArgumentException("Invalid digest state");
+        for (int i = 0; i < digest.mBufferLen; i++)
+            digest.mBuffer[i] = (byte) Integer.parseInt(
+                    state.substring(80 + i * 2, 82 + i * 2), 16);
+        return digest;
+    }
+
+    private void processBlock(byte[] block, int offset) {
+        final int[] w = mW;
+        for (int i = 0; i < 16; i++, offset += 4) {
+            w[i] = (block[offset] << 24) | ((block[offset + 1] & 0xff) << 16)
+                    | ((block[offset + 2] & 0xff) << 8) | (block[offset + 3] & 0xff);
+        }
+        for (int i = 16; i < 64; i++) {
+            final int s0 = Integer.rotateRight(w[i - 15], 7)
+                    ^ Integer.rotateRight(w[i - 15], 18) ^ (w[i - 15] >>> 3);
+            final int s1 = Integer.rotateRight(w[i - 2], 17)
+                    ^ Integer.rotateRight(w[i - 2], 19) ^ (w[i - 2] >>> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+
+        int a = mH[0], b = mH[1], c = mH[2], d = mH[3];
+        int e = mH[4], f = mH[5], g = mH[6], h = mH[7];
+        for (int i = 0; i < 64; i++) {
+            final int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11)
+                    ^ Integer.rotateRight(e, 25);
+            final int ch = (e & f) ^ (~e & g);
+            final int t1 = h + s1 + ch + K[i] + w[i];
+            final int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13)
+                    ^ Integer.rotateRight(a, 22);
+            final int maj = (a & b) ^ (a & c) ^ (b & c);
+            final int t2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        mH[0] += a;
+        mH[1] += b;
+        mH[2] += c;
+        mH[3] += d;
+        mH[4] += e;
+        mH[5] += f;
+        mH[6] += g;
+        mH[7] += h;
+    }
+}
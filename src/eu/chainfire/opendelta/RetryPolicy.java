@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether and when a failed transfer is attempted again. Waits grow
+ * exponentially with random jitter, so devices that lost the same server
+ * don't all come back at once. A Retry-After sent by the server is honoured.
+ * The amount of retries is limited for the lifetime of the policy.
+ */
+class RetryPolicy {
+    private static final long BASE_DELAY = 1000L;
+    private static final long MAX_DELAY = TimeUnit.MINUTES.toMillis(2);
+    private static final long MAX_RETRY_AFTER = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Thrown for an unexpected HTTP response
+     */
+    static class HttpStatusException extends IOException {
+        final int code;
+        final String retryAfter;
+
+        HttpStatusException(int code, int expected, String retryAfter) {
+            super("response: " + code + " expected: " + expected);
+            this.code = code;
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    private final int mMaxRetries;
+    private final Random mRandom = new Random();
+    private int mRetries;
+    private int mConsecutive;
+
+    RetryPolicy(int maxRetries) {
+        mMaxRetries = maxRetries;
+    }
+
+    int getRetries() {
+        return mRetries;
+    }
+
+    /**
+     * Resets the backoff, without returning retries that were used
+     */
+    void onProgress() {
+        mConsecutive = 0;
+    }
+
+    /**
+     * @return milliseconds to wait before trying again, or -1 if the failure
+     *         isn't worth retrying or no retries are left
+     */
+    long getDelay(Exception failure) {
+        if (!isRetryable(failure) || mRetries >= mMaxRetries) return -1;
+        mRetries++;
+        if (failure instanceof HttpStatusException) {
+            final long retryAfter = parseRetryAfter(((HttpStatusException) failure).retryAfter);
+            if (retryAfter >= 0) {
+                mConsecutive++;
+                return Math.min(retryAfter, MAX_RETRY_AFTER);
+            }
+        }
+        final long cap = Math.min(MAX_DELAY, BASE_DELAY << Math.min(mConsecutive++, 16));
+        // anywhere between half and all of the cap
+        return cap / 2 + (long) (mRandom.nextDouble() * (cap / 2));
+    }
+
+    static boolean isRetryable(Exception failure) {
+        if (failure instanceof HttpStatusException) {
+            final int code = ((HttpStatusException) failure).code;
+            return code >= 500 || code == 408 || code == 429;
+        }
+        if (failure instanceof PartFileWriter.DiskFullException) return false;
+        // timeouts, resets, early ends of the stream
+        return failure instanceof IOException;
+    }
+
+    /**
+     * @return the delay asked for in a Retry-After header, which is either
+     *         in seconds or a date. -1 if there is none.
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null || value.isEmpty()) return -1;
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim())));
+        } catch (NumberFormatException ignored) {
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat(
+                    "EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            return Math.max(0, format.parse(value.trim()).getTime()
+                    - System.currentTimeMillis());
+        } catch (ParseException e) {
+            Logger.ex(e);
+            return -1;
+        }
+    }
+}
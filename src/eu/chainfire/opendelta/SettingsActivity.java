@@ -32,6 +32,8 @@ public class SettingsActivity extends CollapsingToolbarBaseActivity {
     public static final String PREF_CHARGE_ONLY = "charge_only";
     public static final String PREF_BATTERY_LEVEL = "battery_level_string";
     public static final String PREF_SCREEN_STATE_OFF = "screen_state_off";
+    public static final String PREF_DOWNLOAD_LIMIT_UNMETERED = "download_limit_unmetered";
+    public static final String PREF_DOWNLOAD_LIMIT_METERED = "download_limit_metered";
     public static final String PREF_START_HINT_SHOWN = "start_hint_shown";
 
     public static final String PREF_SCHEDULER_MODE = "scheduler_mode";
@@ -72,6 +72,8 @@ public class SettingsFragment extends PreferenceFragment implements
     private SwitchPreferenceCompat mNetworksConfig;
     private ListPreference mAutoDownload;
     private ListPreference mBatteryLevel;
+    private ListPreference mDownloadLimitUnmetered;
+    private ListPreference mDownloadLimitMetered;
     private SwitchPreferenceCompat mChargeOnly;
     private SwitchPreferenceCompat mABPerfMode;
     private SwitchPreferenceCompat mABWakeLock;
@@ -112,6 +114,12 @@ public class SettingsFragment extends PreferenceFragment implements
         mBatteryLevel = findPreference(SettingsActivity.PREF_BATTERY_LEVEL);
         mBatteryLevel.setOnPreferenceChangeListener(this);
         mBatteryLevel.setSummary(mBatteryLevel.getEntry());
+        mDownloadLimitUnmetered = findPreference(SettingsActivity.PREF_DOWNLOAD_LIMIT_UNMETERED);
+        mDownloadLimitUnmetered.setOnPreferenceChangeListener(this);
+        mDownloadLimitUnmetered.setSummary(mDownloadLimitUnmetered.getEntry());
+        mDownloadLimitMetered = findPreference(SettingsActivity.PREF_DOWNLOAD_LIMIT_METERED);
+        mDownloadLimitMetered.setOnPreferenceChangeListener(this);
+        mDownloadLimitMetered.setSummary(mDownloadLimitMetered.getEntry());
 
         if (!Config.isABDevice() || !mConfig.getABPerfModeSupport()) {
             getPreferenceScreen().removePreference(findPreference(KEY_AB_PERF_MODE));
@@ -220,6 +228,12 @@ public class SettingsFragment extends PreferenceFragment implements
             mBatteryLevel.setSummary(mBatteryLevel.getEntries()[idx]);
             mBatteryLevel.setValueIndex(idx);
             return true;
+        } else if (preference == mDownloadLimitUnmetered
+                || preference == mDownloadLimitMetered) {
+            final ListPreference limit = (ListPreference) preference;
+            int idx = limit.findIndexOfValue((String) newValue);
+            limit.setSummary(limit.getEntries()[idx]);
+            return true;
         } else if (preference == mSchedulerMode) {
             String value = (String) newValue;
             int idx = mSchedulerMode.findIndexOfValue(value);
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import android.util.JsonReader;
+import android.util.MalformedJsonException;
+
+import eu.chainfire.opendelta.UpdateService.ProgressListener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * SHA-256 Merkle tree of a build, which unlike the sum of the whole file
+ * can be computed on all cores. A build json may advertise it next to the
+ * sha256url as "sha256tree": {"leaf_size": 4194304, "root": "..."}.
+ * The file is split in leaves of leaf_size bytes, only the last one may be
+ * shorter (an empty file has one empty leaf). A leaf hashes to
+ * SHA-256(0x00 || data), two nodes to SHA-256(0x01 || left || right), and
+ * the last node of a level that has no partner moves up unchanged, like
+ * RFC 6962 does it.
+ */
+class TreeDigest {
+    static final long DEFAULT_LEAF_SIZE = 4L * 1024L * 1024L;
+    private static final long MIN_LEAF_SIZE = 64L * 1024L;
+    private static final long MAX_LEAF_SIZE = 256L * 1024L * 1024L;
+
+    final long leafSize;
+    /** hex */
+    final String root;
+
+    TreeDigest(long leafSize, String root) {
+        this.leafSize = leafSize;
+        this.root = root;
+    }
+
+    /**
+     * Reads {"leaf_size": .., "root": ..}
+     * @throws MalformedJsonException if it isn't a valid tree description
+     */
+    static TreeDigest parse(JsonReader reader) throws IOException {
+        long leafSize = -1;
+        String root = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "leaf_size":
+                    leafSize = reader.nextLong();
+                    break;
+                case "root":
+                    root = reader.nextString().toLowerCase(Locale.ENGLISH);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (leafSize < MIN_LEAF_SIZE || leafSize > MAX_LEAF_SIZE)
+            throw new MalformedJsonException("Invalid tree leaf size " + leafSize);
+        if (root == null || !root.matches("[0-9a-f]{64}"))
+            throw new MalformedJsonException("Invalid tree root " + root);
+        return new TreeDigest(leafSize, root);
+    }
+
+    /**
+     * @return whether the file matches the tree
+     */
+    boolean verify(File file, ProgressListener listener, CancellationToken token)
+            throws IOException {
+        final ProgressCounter progress = new ProgressCounter(file.length());
+        final String computed;
+        try (ProgressSampler.Registration ignored =
+                     ProgressSampler.getInstance().start(progress, listener)) {
+            computed = compute(file, leafSize, progress, token);
+        }
+        Logger.d("tree root=" + computed + " expected=" + root);
+        return root.equals(computed);
+    }
+
+    /**
+     * Hashes the leaves on a pool with a thread per core
+     * @param progress optional, increased with the bytes hashed
+     * @param token optional, stops the hashing
+     * @return the root as hex string
+     */
+    static String compute(File file, long leafSize, ProgressCounter progress,
+            CancellationToken token) throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try (FileInputStream is = new FileInputStream(file);
+             FileChannel channel = is.getChannel()) {
+            final long total = channel.size();
+            final int leaves = (int) Math.max(1, (total + leafSize - 1) / leafSize);
+            final byte[][] nodes = new byte[leaves][];
+            final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() ->
+                    ByteBuffer.allocateDirect((int) Math.min(leafSize, FileVerifier.BLOCK_SIZE)));
+            final ForkJoinTask<Void> task = pool.submit(new LeafTask(channel, total, leafSize,
+                    0, leaves, nodes, buffers, progress, token));
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                task.cancel(true);
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof UncheckedIOException)
+                    throw ((UncheckedIOException) cause).getCause();
+                throw new IOException(cause);
+            }
+            return Download.digestToHexString(reduce(nodes));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static byte[] reduce(byte[][] nodes) throws IOException {
+        int count = nodes.length;
+        final MessageDigest digest = FileVerifier.newSha256();
+        while (count > 1) {
+            int next = 0;
+            for (int i = 0; i < count; i += 2) {
+                if (i + 1 == count) {
+                    nodes[next++] = nodes[i];
+                    continue;
+                }
+                digest.update((byte) 1);
+                digest.update(nodes[i]);
+                digest.update(nodes[i + 1]);
+                nodes[next++] = digest.digest();
+            }
+            count = next;
+        }
+        return nodes[0];
+    }
+
+    /**
+     * Hashes the leaves [from, to), splitting the range until a task has a
+     * single leaf
+     */
+    private static class LeafTask extends RecursiveAction {
+        private final FileChannel mChannel;
+        private final long mTotal;
+        private final long mLeafSize;
+        private final int mFrom;
+        private final int mTo;
+        private final byte[][] mNodes;
+        private final ThreadLocal<ByteBuffer> mBuffers;
+        private final ProgressCounter mProgress;
+        private final CancellationToken mToken;
+
+        LeafTask(FileChannel channel, long total, long leafSize, int from, int to,
+                byte[][] nodes, ThreadLocal<ByteBuffer> buffers, ProgressCounter progress,
+                CancellationToken token) {
+            mChannel = channel;
+            mTotal = total;
+            mLeafSize = leafSize;
+            mFrom = from;
+            mTo = to;
+            mNodes = nodes;
+            mBuffers = buffers;
+            mProgress = progress;
+            mToken = token;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom > 1) {
+                final int mid = (mFrom + mTo) >>> 1;
+                invokeAll(
+                        new LeafTask(mChannel, mTotal, mLeafSize, mFrom, mid, mNodes,
+                                mBuffers, mProgress, mToken),
+                        new LeafTask(mChannel, mTotal, mLeafSize, mid, mTo, mNodes,
+                                mBuffers, mProgress, mToken));
+                return;
+            }
+            final long start = mFrom * mLeafSize;
+            final long end = Math.min(mTotal, start + mLeafSize);
+            try {
+                final MessageDigest digest = FileVerifier.newSha256();
+                digest.update((byte) 0);
+                FileVerifier.update(mChannel, start, end, digest, mBuffers.get(), null,
+                        mToken);
+                mNodes[mFrom] = digest.digest();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (mProgress != null) mProgress.add(end - start);
+        }
+    }
+
+    /**
+     * Compares the time it takes with the SHA-256 of the whole file
+     */
+    static void benchmark(File file, PrintWriter pw) throws IOException {
+        compute(file, DEFAULT_LEAF_SIZE, null, null);
+        final long start = System.nanoTime();
+        compute(file, DEFAULT_LEAF_SIZE, null, null);
+        final long nanos = System.nanoTime() - start;
+        pw.println(String.format(Locale.ENGLISH, "  %d KB tree on %d cores: %.1f MB/s",
+                DEFAULT_LEAF_SIZE / 1024, Runtime.getRuntime().availableProcessors(),
+                file.length() * 1000000000f / nanos / 1048576f));
+    }
+}
@@ -47,6 +47,8 @@ import android.os.RecoverySystem;
 import android.os.StatFs;
 import android.os.SystemClock;
 import android.os.UpdateEngine;
+import android.util.JsonReader;
+import android.util.MalformedJsonException;
 
 import androidx.preference.PreferenceManager;
 
@@ -54,32 +56,32 @@ import eu.chainfire.opendelta.State.StateInt;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.lang.StringBuilder;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.Files;
 import java.security.GeneralSecurityException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 public class UpdateService extends Service implements OnSharedPreferenceChangeListener {
 
     public static void start(Context context) {
@@ -173,13 +175,22 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
     public static final int PREF_AUTO_DOWNLOAD_CHECK = 1;
     public static final int PREF_AUTO_DOWNLOAD_FULL = 2;
 
+    // parallel metadata requests of a check
+    private static final int FETCH_THREADS = 6;
+    // builds looked at for the changelog
+    private static final int CHANGELOG_HISTORY = 10;
+
     private Config mConfig;
 
     private HandlerThread mHandlerThread;
     private Handler mHandler;
+    private ThreadPoolExecutor mFetchExecutor;
 
     private final State mState = State.getInstance();
     private Download mDownload;
+    private boolean mDownloadUserInitiated;
+    // shared by the check, download and verify of the current run
+    private volatile CancellationToken mCancelToken = new CancellationToken();
 
     private NetworkState mNetworkState;
     private BatteryState mBatteryState;
@@ -200,26 +211,32 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
     private boolean mIsUrlOverride;
     private String mSumUrlOvr;
 
-    private long[] mLastProgressTime;
+    // the flash progress is kept in hundredths of a percent
+    private static final long FLASH_PROGRESS_TOTAL = 10000L;
+
+    private volatile long mFlashStartTime;
+    private volatile String mFlashStatus;
+    private final ProgressCounter mFlashProgress = new ProgressCounter(FLASH_PROGRESS_TOTAL);
+    private ProgressSampler.Registration mFlashRegistration;
+    private final ProgressSampler.Sink mFlashSink = (current, total) -> {
+        final long ms = SystemClock.elapsedRealtime() - mFlashStartTime;
+        final float progress = ProgressCounter.getPercent(current, total);
+        final int sec = current > 0
+                ? (int) (((((float) total / (float) current) * (float) ms) - ms) / 1000f) : 0;
+        mState.update(State.ACTION_AB_FLASH, progress, current * 100L / total, 100L,
+                mFlashStatus, ms);
+        setFlashNotificationProgress((int) progress, sec);
+    };
     private final ProgressListener mProgressListener = new ProgressListener() {
-        private String status;
-
         @Override
         public void onProgress(float progress, long current, long total) {
-            if (mLastProgressTime == null)
-                mLastProgressTime = mLastProgressTime = new long[] { 0, SystemClock.elapsedRealtime() };
-            long now = SystemClock.elapsedRealtime();
-            if (now >= mLastProgressTime[0] + 250L) {
-                long ms = SystemClock.elapsedRealtime() - mLastProgressTime[1];
-                int sec = (int) (((((float) total / (float) current) * (float) ms) - ms) / 1000f);
-                mState.update(State.ACTION_AB_FLASH, progress, current, total, this.status, ms);
-                setFlashNotificationProgress((int) progress, sec);
-                mLastProgressTime[0] = now;
-            }
+            // only stored here, the sampler publishes it
+            mFlashProgress.set(Math.round(progress * (FLASH_PROGRESS_TOTAL / 100L)));
+            startFlashProgress();
         }
 
         public void setStatus(String status) {
-            this.status = status;
+            mFlashStatus = status;
         }
     };
 
@@ -246,6 +263,32 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
         }
     }
 
+    /**
+     * adb shell dumpsys activity service eu.chainfire.opendelta/.UpdateService
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("Requests (last " + RequestMetrics.HISTORY + "):");
+        RequestMetrics.getInstance().dump(pw);
+        final HttpCache cache = HttpCache.getInstance();
+        if (cache != null) {
+            pw.println("HTTP cache: " + cache.getHits() + " hits, "
+                    + cache.getMisses() + " misses");
+        }
+        pw.println("GitHub API: " + GitHubRateLimit.getInstance());
+        pw.println("SHA-256 providers:");
+        DigestProvider.dump(pw);
+        if (args != null && args.length == 2 && "verify".equals(args[0])) {
+            pw.println("Verification:");
+            try {
+                FileVerifier.benchmark(new File(args[1]), pw);
+                TreeDigest.benchmark(new File(args[1]), pw);
+            } catch (IOException e) {
+                pw.println("  " + e);
+            }
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
@@ -274,6 +317,9 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
         mHandlerThread = new HandlerThread("OpenDelta Service Thread");
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
+        mFetchExecutor = new ThreadPoolExecutor(FETCH_THREADS, FETCH_THREADS,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        mFetchExecutor.allowCoreThreadTimeOut(true);
 
         mNotificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         mPrefs = PreferenceManager.getDefaultSharedPreferences(this);
@@ -285,7 +331,7 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
             Scheduler.start(this, Scheduler.ACTION_SCHEDULER_START);
         }
         mNetworkState = new NetworkState();
-        mNetworkState.start(this, null);
+        mNetworkState.start(this, state -> updateDownloadRateLimit());
 
         mBatteryState = new BatteryState();
         mBatteryState.start(this, null,
@@ -305,6 +351,7 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
         mBatteryState.stop();
         mScreenState.stop();
         mHandlerThread.quitSafely();
+        mFetchExecutor.shutdown();
 
         super.onDestroy();
     }
@@ -363,6 +410,7 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
                 }
 
                 if (mDownload != null) mDownload.stop();
+                mCancelToken.cancel();
                 if (mNotificationManager != null)
                     mNotificationManager.cancel(NOTIFICATION_BUSY);
                 // if we have a paused download in progress we need to manually stop it
@@ -372,8 +420,10 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
                     File[] files = new File(mConfig.getPathBase()).listFiles();
                     if (files != null && files.length > 0)
                         for (File file : files)
-                            if (file.isFile() && file.getName().endsWith(".part"))
+                            if (file.isFile() && file.getName().endsWith(".part")) {
                                 file.delete();
+                                PartInfo.delete(file);
+                            }
                     autoState(false);
                 }
                 break;
@@ -398,6 +448,7 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
                 } else {
                     // pause
                     if (mDownload != null) mDownload.pause();
+                    mCancelToken.cancel();
                     autoState(false);
                 }
                 break;
@@ -483,6 +534,10 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
                 mNetworkState.setMeteredAllowed(sharedPreferences.getBoolean(
                         PREF_AUTO_UPDATE_METERED_NETWORKS, false));
                 break;
+            case SettingsActivity.PREF_DOWNLOAD_LIMIT_UNMETERED:
+            case SettingsActivity.PREF_DOWNLOAD_LIMIT_METERED:
+                updateDownloadRateLimit();
+                break;
             case SettingsActivity.PREF_AUTO_DOWNLOAD:
             case SettingsActivity.PREF_SCHEDULER_MODE:
             case SettingsActivity.PREF_SCHEDULER_DAILY_TIME:
@@ -526,8 +581,8 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
                 final String flashFilename = mPrefs.getString(PREF_CURRENT_AB_FILENAME_NAME, null);
                 if (flashFilename != null && !flashFilename.isEmpty()) {
                     final String _filename = new File(flashFilename).getName();
-                    if (mLastProgressTime == null)
-                        mLastProgressTime = new long[] { 0, SystemClock.elapsedRealtime() };
+                    if (mFlashStartTime == 0)
+                        mFlashStartTime = SystemClock.elapsedRealtime();
                     mProgressListener.setStatus(_filename);
                     mState.update(State.ACTION_AB_FLASH, 0f, 0L, 100L, _filename, null);
                     final int code = ABUpdate.getInstance(this).resume();
@@ -567,8 +622,10 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
                         if (file.isFile() && currName.endsWith(".part")) {
                             if (currName.equals(latestBuild + ".part"))
                                 found = file;
-                            else
+                            else {
                                 file.delete(); // remove old .part files
+                                PartInfo.delete(file);
+                            }
                         }
                     }
                 }
@@ -576,7 +633,7 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
                     // confirm we're not already downloading
                     if (mState.getState() == State.ACTION_DOWNLOADING) return;
                     long total = mPrefs.getLong(PREF_DOWNLOAD_SIZE, 1500000000L /* 1.5 GB */);
-                    final long current = found.length();
+                    final long current = PartInfo.getDownloaded(found);
                     final long lastTime = mPrefs.getLong(PREF_LAST_DOWNLOAD_TIME, 0);
                     final float progress = ((float) current / (float) total) * 100f;
                     mState.update(State.ACTION_DOWNLOADING_PAUSED, progress, current, total,
@@ -747,16 +804,15 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
         }
     }
 
-    private boolean isMatchingImage(String fileName) {
+    private boolean isMatchingImage(BuildInfo build) {
+        final String fileName = build.filename;
         try {
             Logger.d("Image check for file name: " + fileName);
             if (fileName.endsWith(".zip") && fileName.contains(mConfig.getDevice())) {
-                String[] parts = fileName.split("-");
-                if (parts.length > 1) {
+                if (build.version != null) {
                     Logger.d("isMatchingImage: check " + fileName);
-                    String version = parts[1];
                     Version current = new Version(mConfig.getAndroidVersion());
-                    Version fileVersion = new Version(version);
+                    Version fileVersion = new Version(build.version);
                     if (fileVersion.compareTo(current) >= 0) {
                         Logger.d("isMatchingImage: ok " + fileName);
                         return true;
@@ -858,7 +914,8 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
         return false;
     }
 
-    private void downloadBuild(String url, String sha256Sum, String imageName) {
+    private void downloadBuild(String url, List<String> mirrors, String sha256Sum,
+            ChunkManifest manifest, String imageName, boolean userInitiated) {
         String fn = mConfig.getPathBase() + imageName;
         File f = new File(fn + ".part");
         Logger.d("download: %s --> %s", url, fn);
@@ -871,19 +928,29 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
                 if (file.isFile() && currName.endsWith(".part")
                         && !currName.equals(f.getName())) {
                     file.delete();
+                    PartInfo.delete(file);
                 }
             }
         }
 
         mDownload = new Download(url, f, sha256Sum, this);
+        mDownload.setChunkManifest(manifest);
+        mDownload.setMirrors(mirrors);
+        mDownload.setCancellationToken(mCancelToken);
+        mDownloadUserInitiated = userInitiated;
+        updateDownloadRateLimit();
         if (mDownload.start() && f.renameTo(new File(fn))) {
             Logger.d("success");
+            // the download was checked against the sum already
+            final VerificationCache cache = VerificationCache.getInstance();
+            if (cache != null) cache.put(new File(fn), sha256Sum);
             mPrefs.edit().putString(PREF_READY_FILENAME_NAME, fn).commit();
             mNotificationManager.cancel(NOTIFICATION_BUSY);
             startNotification(null, fn);
         } else {
             if (mDownload.getStatus() == Download.STATUS_DOWNLOAD_STOP) {
                 f.delete();
+                PartInfo.delete(f);
                 Logger.d("download stopped");
                 autoState(false);
                 mNotificationManager.cancel(NOTIFICATION_BUSY);
@@ -891,7 +958,7 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
                        !mState.equals(State.ERROR_DOWNLOAD) &&
                        !mState.equals(State.ERROR_DOWNLOAD_SHA)) {
                 // either pause or error
-                final Long current = f.length();
+                final Long current = PartInfo.getDownloaded(f);
                 final Long total = mPrefs.getLong(PREF_DOWNLOAD_SIZE, 1500000000L /* 1.5GB */);
                 final Long lastTime = mPrefs.getLong(PREF_LAST_DOWNLOAD_TIME, 0);
                 final float progress = ((float) current / (float) total) * 100f;
@@ -914,22 +981,43 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
         }
     }
 
+    /**
+     * Applies the speed limit matching who started the download and the
+     * current network to the running download
+     */
+    private void updateDownloadRateLimit() {
+        final Download download = mDownload;
+        if (download == null) return;
+        final long limit;
+        if (mDownloadUserInitiated) {
+            limit = mConfig.getDownloadLimitUser();
+        } else {
+            final String key = mNetworkState.isMetered()
+                    ? SettingsActivity.PREF_DOWNLOAD_LIMIT_METERED
+                    : SettingsActivity.PREF_DOWNLOAD_LIMIT_UNMETERED;
+            limit = Long.parseLong(mPrefs.getString(key, "0")) * 1024L;
+        }
+        download.setRateLimit(limit);
+    }
+
     /**
      * @param url - url to sha256sum file
      * @param fn - file name
      * @return true if sha256sum matches the file
      */
-    private boolean checkBuildSHA256Sum(String url, String fn) {
-        final String latestSUM = getLatestSHA256Sum(url);
+    private boolean checkBuildSHA256Sum(String latestSUM, String fn, TreeDigest tree) {
         final File file = new File(fn);
+        if (latestSUM != null && tree != null && checkBuildTree(latestSUM, file, tree))
+            return true;
         if (latestSUM != null){
             try {
                 String fileSUM = getFileSHA256(file,
-                        getSUMProgress(State.ACTION_CHECKING_SUM, file.getName()));
+                        getSUMProgress(State.ACTION_CHECKING_SUM, file.getName()),
+                        mCancelToken);
                 boolean sumCheck = fileSUM.equals(latestSUM);
                 Logger.d("fileSUM=" + fileSUM + " latestSUM=" + latestSUM);
                 if (sumCheck) return true;
-                Logger.i("fileSUM check failed for " + url);
+                Logger.i("fileSUM check failed for " + fn);
             } catch(Exception e) {
                 // WTH knows what can comes from the server
             }
@@ -938,39 +1026,37 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
     }
 
     public static String getFileSHA256(File file, ProgressListener progressListener) {
-        String ret = null;
-        int count = 0;
-
-        long total = file.length();
-        if (progressListener != null)
-            progressListener.onProgress(getProgress(0, total), 0, total);
-
-        try {
-            try (FileInputStream is = new FileInputStream(file)) {
-                MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                byte[] buffer = new byte[8192];
-                int r;
-
-                while ((r = is.read(buffer)) > 0) {
-                    digest.update(buffer, 0, r);
-                    count += r;
-                    if (progressListener != null)
-                        progressListener.onProgress(getProgress(count, total), count, total);
-                }
+        return getFileSHA256(file, progressListener, null);
+    }
 
-                ret = Download.digestToHexString(digest);
-            }
-        } catch (IOException | NoSuchAlgorithmException e) {
+    /**
+     * @param token optional, stops hashing and returns null when cancelled
+     */
+    public static String getFileSHA256(File file, ProgressListener progressListener,
+            CancellationToken token) {
+        final VerificationCache cache = VerificationCache.getInstance();
+        final String key = cache != null ? VerificationCache.getKey(file) : null;
+        final String cached = key != null ? cache.get(file, key) : null;
+        if (cached != null) {
+            Logger.d("Using verified sum of unchanged " + file.getName());
+            final long total = file.length();
+            if (progressListener != null)
+                progressListener.onProgress(100f, total, total);
+            return cached;
+        }
+        final ProgressCounter counter = new ProgressCounter(file.length());
+        try (ProgressSampler.Registration ignored = ProgressSampler.getInstance()
+                .start(counter, progressListener)) {
+            final String sum = FileVerifier.sha256(file, counter, token);
+            if (key != null) cache.put(file, key, sum);
+            return sum;
+        } catch (IOException e) {
             // No SHA256 support (returns null)
             // The SHA256 of a non-existing file is null
             // Read or close error (returns null)
             Logger.ex(e);
+            return null;
         }
-
-        if (progressListener != null)
-            progressListener.onProgress(getProgress(total, total), total, total);
-
-        return ret;
     }
 
     private static void writeString(OutputStream os, String s)
@@ -992,8 +1078,22 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
         return flashFilename;
     }
 
+    private synchronized void startFlashProgress() {
+        if (mFlashRegistration != null) return;
+        if (mFlashStartTime == 0) mFlashStartTime = SystemClock.elapsedRealtime();
+        mFlashRegistration = ProgressSampler.getInstance().start(mFlashProgress, mFlashSink);
+    }
+
+    private synchronized void stopFlashProgress() {
+        if (mFlashRegistration == null) return;
+        mFlashRegistration.close();
+        mFlashRegistration = null;
+    }
+
     protected void onUpdateCompleted(int status, int errorCode) {
         Logger.d("onUpdateCompleted status = " + status);
+        // publish the last progress before the final state replaces it
+        stopFlashProgress();
         mNotificationManager.cancel(NOTIFICATION_UPDATE);
         if (status == UpdateEngine.ErrorCodeConstants.SUCCESS) {
             mPrefs.edit().putBoolean(PREF_PENDING_REBOOT, true).commit();
@@ -1117,7 +1217,7 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
             code = ABUpdate.getInstance(this).start(flashFilename, mProgressListener);
         }
         if (code < 0) {
-            mLastProgressTime = new long[] { 0, SystemClock.elapsedRealtime() };
+            mFlashStartTime = SystemClock.elapsedRealtime();
             mProgressListener.setStatus(_filename);
             return;
         }
@@ -1309,7 +1409,7 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
         } else if (urlSuffix.length() > 0) {
             sumUrl += mConfig.getUrlSuffix();
         }
-        String latestSum = Download.asString(sumUrl);
+        String latestSum = Download.asString(sumUrl, mCancelToken);
         if (latestSum != null) {
             String sumPart = latestSum;
             while (sumPart.length() > 64)
@@ -1407,6 +1507,7 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
         newDownloadNotification(false,
                 getString(R.string.state_action_downloading));
 
+        mCancelToken = new CancellationToken();
         mHandler.post(() -> {
             try {
                 String flashFilename = null;
@@ -1416,96 +1517,74 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
                 Logger.d("Checking for latest build");
 
                 String url = mConfig.getUrlBaseJson();
-                String latestBuild = null;
-                String urlOverride = null;
-                String sumOverride = null;
-                List<String> payloadProps = null;
+                String headSha = null;
 
                 // manipulate url to point to the HEAD sha instead of branch
                 // this guarantees up to date raw overriding the 5m cache time github uses
+                // the rest of the history is used for the changelog
+                List<String> history = new ArrayList<>();
                 try {
-                    final JSONArray jArr = new JSONArray(Download.asString(mConfig.getUrlAPIHistory()));
-                    final String headSha = jArr.getJSONObject(0).getString("sha");
+                    history = getHistoryShas(CHANGELOG_HISTORY);
+                    headSha = history.get(0);
                     url = url.replace(mConfig.getUrlBranchName(), headSha);
                 } catch (Exception e) {
                     // do nothing. old url should still work for fetching
                 }
 
-                String buildData = Download.asString(url);
-                if (buildData == null || buildData.length() == 0) {
-                    mState.update(State.ERROR_DOWNLOAD, url, Download.ERROR_CODE_NEWEST_BUILD);
-                    mNotificationManager.cancel(NOTIFICATION_BUSY);
-                    return;
-                }
-                JSONObject object;
+                BuildInfo build;
                 try {
-                    object = new JSONObject(buildData);
-                    JSONArray updatesList = object.getJSONArray("response");
-                    for (int i = 0; i < updatesList.length(); i++) {
-                        if (updatesList.isNull(i)) {
-                            continue;
-                        }
-                        try {
-                            JSONObject build = updatesList.getJSONObject(i);
-                            String fileName = new File(build.getString("filename")).getName();
-                            if (build.has("url"))
-                                urlOverride = build.getString("url");
-                            if (build.has("sha256url"))
-                                sumOverride = build.getString("sha256url");
-                            if (build.has("payload")) {
-                                payloadProps = new ArrayList<>();
-                                JSONArray payloadList = build.getJSONArray("payload");
-                                for (int j = 0; j < payloadList.length(); j++) {
-                                    if (payloadList.isNull(j)) continue;
-                                    JSONObject prop = payloadList.getJSONObject(j);
-                                    Iterator<String> keys = prop.keys();
-                                    while (keys.hasNext()) {
-                                        final String key = keys.next();
-                                        payloadProps.add(key + "=" + prop.get(key));
-                                    }
-                                }
-                            }
-                            Logger.d("parsed from json:");
-                            Logger.d("fileName= " + fileName);
-                            if (!isMatchingImage(fileName)) {
-                                String[] parts = fileName.split("-", 3);
-                                String ver = mConfig.getAndroidVersion();
-                                if (parts.length > 1) ver = parts[1];
-                                mState.update(State.ERROR_UNOFFICIAL, ver);
-                                return;
-                            }
-                            latestBuild = fileName;
-                            if (urlOverride != null && !urlOverride.equals(""))
-                                Logger.d("url= " + urlOverride);
-                            if (sumOverride != null && !sumOverride.equals("")) {
-                                Logger.d("sha256 url= " + sumOverride);
-                            }
-                            if (payloadProps != null) {
-                                for (String str : payloadProps) {
-                                    Logger.d(str);
-                                }
-                            }
-                        } catch (JSONException e) {
-                            Logger.ex(e);
-                            mState.update(State.ERROR_DOWNLOAD, Download.ERROR_CODE_JSON_MALFORMED);
-                            return;
-                        }
-                    }
-                } catch (Exception e) {
+                    build = BuildInfo.fetch(url, headSha, mCancelToken);
+                } catch (MalformedJsonException e) {
+                    Logger.ex(e);
+                    mState.update(State.ERROR_DOWNLOAD, Download.ERROR_CODE_JSON_MALFORMED);
+                    return;
+                } catch (IOException e) {
                     Logger.ex(e);
-                    mState.update(State.ERROR_DOWNLOAD, Download.ERROR_CODE_NEWEST_BUILD);
+                    build = null;
+                    if (!mCancelToken.isCancelled()) {
+                        mState.update(State.ERROR_DOWNLOAD, url, Download.ERROR_CODE_NEWEST_BUILD);
+                        mNotificationManager.cancel(NOTIFICATION_BUSY);
+                        return;
+                    }
+                }
+                if (mCancelToken.isCancelled()) {
+                    Logger.d("check cancelled");
+                    mNotificationManager.cancel(NOTIFICATION_BUSY);
+                    autoState(false);
                     return;
                 }
 
                 // if we don't even find a build on dl no sense to continue
-                if (latestBuild == null || latestBuild.length() == 0) {
+                if (build == null) {
                     Logger.d("no latest build found at " + url +
                             " for " + mConfig.getDevice());
                     return;
                 }
 
-                String latestFetch;
-                String latestFetchSUM;
+                Logger.d("parsed from json:");
+                Logger.d("fileName= " + build.filename);
+                if (!isMatchingImage(build)) {
+                    mState.update(State.ERROR_UNOFFICIAL, build.version != null
+                            ? build.version : mConfig.getAndroidVersion());
+                    return;
+                }
+                final String latestBuild = build.filename;
+                final String urlOverride = build.url;
+                final String sumOverride = build.sha256url;
+                final List<String> payloadProps = build.payload;
+                if (urlOverride != null && !urlOverride.equals(""))
+                    Logger.d("url= " + urlOverride);
+                if (sumOverride != null && !sumOverride.equals("")) {
+                    Logger.d("sha256 url= " + sumOverride);
+                }
+                if (payloadProps != null) {
+                    for (String str : payloadProps) {
+                        Logger.d(str);
+                    }
+                }
+
+                final String latestFetch;
+                final String latestFetchSUM;
                 if (urlOverride == null || sumOverride == null) {
                     latestFetch = mConfig.getUrlBase() +
                             latestBuild + mConfig.getUrlSuffix();
@@ -1516,21 +1595,19 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
                     latestFetchSUM = sumOverride;
                 }
                 Logger.d("latest build for device " + mConfig.getDevice() + " is " + latestFetch);
-
-                String currentVersionZip = mConfig.getFilenameBase() + ".zip";
-                boolean updateAvailable = latestBuild != null && forceFlash;
-                if (latestBuild != null && !forceFlash) {
-                    try {
-                        final long currFileDate = Long.parseLong(currentVersionZip
-                                .split("-")[4].substring(0, 8));
-                        final long latestFileDate = Long.parseLong(latestBuild
-                                .split("-")[4].substring(0, 8));
-                        updateAvailable = latestFileDate > currFileDate;
-                    } catch (NumberFormatException exception) {
+                final List<String> latestMirrors = new ArrayList<>(build.mirrors);
+                for (String base : mConfig.getUrlBaseMirrors())
+                    latestMirrors.add(base + latestBuild + mConfig.getUrlSuffix());
+
+                boolean updateAvailable = forceFlash;
+                if (!forceFlash) {
+                    final long currFileDate = BuildInfo.parseDate(mConfig.getFilenameBase());
+                    if (currFileDate < 0 || build.date < 0) {
                         // Just incase someone decides to 
                         // make up his own zip / build name and F's this up
                         Logger.d("Build name malformed");
-                        Logger.ex(exception);
+                    } else {
+                        updateAvailable = build.date > currFileDate;
                     }
                 }
                 mPrefs.edit().putString(PREF_LATEST_FULL_NAME,
@@ -1546,12 +1623,36 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
                     mPrefs.edit().remove(PREF_LATEST_PAYLOAD_PROPS).commit();
                 }
 
-                final String changelog = getChangelogString();
+                // none of these depend on each other, the changelog is put
+                // together here meanwhile
+                // the sum is only needed to check a build we already have
+                // or to download one
+                final boolean needSum = checkOnly == PREF_AUTO_DOWNLOAD_FULL
+                        || new File(mConfig.getPathBase() + latestBuild).exists();
+                final CompletableFuture<String> sumFuture = needSum
+                        ? CompletableFuture.supplyAsync(
+                                () -> getLatestSHA256Sum(latestFetchSUM), mFetchExecutor)
+                        : CompletableFuture.completedFuture(null);
+                // no need to ask the server if the json has it
+                final CompletableFuture<Long> sizeFuture = build.size >= 0
+                        ? CompletableFuture.completedFuture(build.size)
+                        : CompletableFuture.supplyAsync(
+                                () -> Download.getSize(latestFetch), mFetchExecutor);
+                // optional, allows fetching only the corrupt parts again
+                final CompletableFuture<ChunkManifest> manifestFuture =
+                        checkOnly == PREF_AUTO_DOWNLOAD_FULL
+                        ? CompletableFuture.supplyAsync(() -> ChunkManifest.fetch(
+                                ChunkManifest.getUrl(latestFetchSUM), mCancelToken),
+                                mFetchExecutor)
+                        : CompletableFuture.completedFuture(null);
+
+                final String changelog = getChangelogString(history);
                 mPrefs.edit().putString(PREF_LATEST_CHANGELOG, changelog).commit();
 
-                if (checkExistingBuild(latestBuild, latestFetchSUM)) return;
-                
-                final long size = Download.getSize(latestFetch);
+                final String latestSUM = sumFuture.join();
+                if (checkExistingBuild(latestBuild, latestSUM, build.tree)) return;
+
+                final long size = sizeFuture.join();
                 mPrefs.edit().putLong(PREF_DOWNLOAD_SIZE, size).commit();
 
                 Logger.d("check done: latest build available = " +
@@ -1574,9 +1675,13 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
 
                 if (checkOnly == PREF_AUTO_DOWNLOAD_FULL) {
                     if (userInitiated || mNetworkState.getState()) {
-                        final String latestSUM = getLatestSHA256Sum(latestFetchSUM);
-                        if (latestSUM != null) {
-                            downloadBuild(latestFetch, latestSUM, latestBuild);
+                        if (mCancelToken.isCancelled()) {
+                            Logger.d("download cancelled before it started");
+                            mNotificationManager.cancel(NOTIFICATION_BUSY);
+                            autoState(false);
+                        } else if (latestSUM != null) {
+                            downloadBuild(latestFetch, latestMirrors, latestSUM,
+                                    manifestFuture.join(), latestBuild, userInitiated);
                         } else {
                             mState.update(State.ERROR_DOWNLOAD, Download.ERROR_CODE_NO_SUM_FILE);
                             Logger.d("aborting download due to sha256sum not found");
@@ -1611,11 +1716,38 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
         });
     }
 
-    private boolean checkExistingBuild(String latestBuild, String latestFetchSUM) {
+    /**
+     * Checks the file against the tree hash on all cores, the whole file
+     * SHA-256 remains the fallback
+     * @return true if the tree matches
+     */
+    private boolean checkBuildTree(String latestSUM, File file, TreeDigest tree) {
+        final VerificationCache cache = VerificationCache.getInstance();
+        final String key = VerificationCache.getKey(file);
+        // no need for either if the file was verified already
+        if (cache != null && (latestSUM.equals(cache.get(file, key))
+                || tree.root.equals(cache.get(file, VerificationCache.KIND_TREE, key))))
+            return true;
+        try {
+            if (tree.verify(file, getSUMProgress(State.ACTION_CHECKING_SUM, file.getName()),
+                    mCancelToken)) {
+                // only the root was computed, the SHA-256 of the file is not known
+                if (cache != null) cache.put(file, VerificationCache.KIND_TREE, key, tree.root);
+                return true;
+            }
+            Logger.i("tree check failed for " + file.getName());
+        } catch (IOException e) {
+            Logger.ex(e);
+        }
+        return false;
+    }
+
+    private boolean checkExistingBuild(String latestBuild, String latestSUM,
+            TreeDigest tree) {
         String fn = mConfig.getPathBase() + latestBuild;
         File file = new File(fn);
         if (file.exists()) {
-            if (checkBuildSHA256Sum(latestFetchSUM, fn)) {
+            if (checkBuildSHA256Sum(latestSUM, fn, tree)) {
                 Logger.d("match found: " + fn);
                 // zip exists and is valid - flash ready state
                 mPrefs.edit().putString(PREF_READY_FILENAME_NAME, fn).commit();
@@ -1701,6 +1833,7 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
             mState.update(State.ERROR_FLASH_FILE, 3);
             return;
         }
+        mCancelToken = new CancellationToken();
         mHandler.post(() -> {
             maybeFlashFile(flashFilename, forceFlash);
         });
@@ -1728,7 +1861,7 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
             }
             final ProgressListener listener = getSUMProgress(
                     State.ACTION_CHECKING_SUM, flashFilename);
-            final String fileSha = getFileSHA256(fn, listener);
+            final String fileSha = getFileSHA256(fn, listener, mCancelToken);
             if (fileSha == null || sha == null || !fileSha.equals(sha)) {
                 mState.update(State.ACTION_FLASH_FILE_INVALID_SUM, fn.getName());
                 return;
@@ -1760,7 +1893,31 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
         mNotificationManager.createNotificationChannel(channel);
     }
 
-    private String getChangelogString() {
+    /**
+     * Reads the commit shas from the history api response as it arrives,
+     * the rest of the commit details isn't even parsed
+     * @param max amount of commits wanted, newest first
+     */
+    private List<String> getHistoryShas(int max) throws IOException {
+        return Download.fetch(mConfig.getUrlAPIHistory(), Download.METADATA_MAX_SIZE,
+                mCancelToken, is -> {
+            List<String> shas = new ArrayList<>();
+            JsonReader reader = new JsonReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            reader.beginArray();
+            while (shas.size() < max && reader.hasNext()) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    // nested objects have a sha as well, those are skipped whole
+                    if ("sha".equals(reader.nextName())) shas.add(reader.nextString());
+                    else reader.skipValue();
+                }
+                reader.endObject();
+            }
+            return shas;
+        });
+    }
+
+    private String getChangelogString(List<String> shas) {
         // unformatted device.json URL
         final String jsURL = mConfig.getUrlBaseJson()
                 .replace(mConfig.getUrlBranchName(), "%s");
@@ -1768,14 +1925,12 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
         final String clURL = jsURL.replace(
                 mConfig.getDevice() + ".json",
                 "Changelog.txt");
-        final Long currDate = Long.parseLong(
-                mConfig.getFilenameBase().split("-")[4].substring(0, 8));
+        final long currDate = BuildInfo.parseDate(mConfig.getFilenameBase());
         StringBuilder changelog = new StringBuilder();
         String clSHA = "";
         try {
-            final JSONArray jArr = new JSONArray(Download.asString(mConfig.getUrlAPIHistory()));
-            if (jArr == null || jArr.isNull(0)) return "";
-            clSHA = jArr.getJSONObject(0).getString("sha");
+            if (shas.isEmpty()) return "";
+            clSHA = shas.get(0);
             String savedSHA = mPrefs.getString(PREF_SAVED_CHANGELOG_SHA, "");
             String savedVer = mPrefs.getString(PREF_SAVED_CHANGELOG_VER, "");
             if (!savedSHA.equals("") && clSHA.equals(savedSHA) &&
@@ -1784,27 +1939,48 @@ public class UpdateService extends Service implements OnSharedPreferenceChangeLi
                 // show that instead of fetching again
                 return mPrefs.getString(PREF_SAVED_CHANGELOG, "");
             }
-            String clURLF = String.format(Locale.ENGLISH, clURL, clSHA);
-            changelog.append(Download.asString(clURLF));
+            final String clURLF = String.format(Locale.ENGLISH, clURL, clSHA);
+            final CompletableFuture<String> latestChangelog = CompletableFuture.supplyAsync(
+                    () -> Download.asString(clURLF, mCancelToken), mFetchExecutor);
             // currently changelog only contains the latest info
             // let us check if we have any builds the user skipped and add em
-            for (int i = 1; i < jArr.length() && i < 10; i++) {
-                try {
-                    final String currSha = jArr.getJSONObject(i).getString("sha");
-                    final String otaJsonURL = String.format(Locale.ENGLISH, jsURL, currSha);
-                    final JSONObject otaJson = new JSONObject(Download.asString(otaJsonURL));
-                    final String filename = otaJson.getJSONArray("response")
-                            .getJSONObject(0).getString("filename");
-                    final Long fileDate = Long.parseLong(
-                            filename.split("-")[4].substring(0, 8));
-                    if (fileDate <= currDate) break; // reached an older/same build
-                    // fetch and add the changelog of that commit sha, titled by the date
-                    final String otaChangelogURL = String.format(Locale.ENGLISH, clURL, currSha);
-                    final String currChangelog = Download.asString(otaChangelogURL);
-                    changelog.append("\n" + fileDate + ":\n\n" + currChangelog);
-                } catch (JSONException e) {
-                    Logger.ex(e);
-                }
+            // the device json of every commit is fetched at once, which may
+            // fetch a few more than needed but saves waiting for each
+            final List<CompletableFuture<BuildInfo>> otaBuilds = new ArrayList<>();
+            for (int i = 1; i < shas.size(); i++) {
+                final String currSha = shas.get(i);
+                final String otaJsonURL = String.format(Locale.ENGLISH, jsURL, currSha);
+                otaBuilds.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return BuildInfo.fetch(otaJsonURL, currSha, mCancelToken);
+                    } catch (IOException e) {
+                        Logger.ex(e);
+                        return null;
+                    }
+                }, mFetchExecutor));
+            }
+            changelog.append(latestChangelog.join());
+            final List<Long> fileDates = new ArrayList<>();
+            final List<CompletableFuture<String>> otaChangelogs = new ArrayList<>();
+            for (int i = 1; i < shas.size(); i++) {
+                final BuildInfo otaBuild = otaBuilds.get(i - 1).join();
+                if (otaBuild == null) break;
+                final long fileDate = otaBuild.date;
+                if (fileDate <= currDate) break; // reached an older/same build
+                // fetch the changelog of that commit sha, titled by the date
+                final String otaChangelogURL = String.format(Locale.ENGLISH, clURL,
+                        shas.get(i));
+                fileDates.add(fileDate);
+                otaChangelogs.add(CompletableFuture.supplyAsync(
+                        () -> Download.asString(otaChangelogURL, mCancelToken),
+                        mFetchExecutor));
+            }
+            // the ones we passed on are no longer needed
+            for (CompletableFuture<BuildInfo> otaBuild : otaBuilds)
+                otaBuild.cancel(false);
+            for (int i = 0; i < otaChangelogs.size(); i++) {
+                changelog.append("\n" + fileDates.get(i) + ":\n\n"
+                        + otaChangelogs.get(i).join());
             }
         } catch (Exception e) {
             Logger.ex(e);
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Remembers the SHA-256 of files that were hashed, so a build that is
+ * checked again on every update check, or selected again for flashing, is
+ * only read when it changed. Tree roots are kept apart from the sums, only
+ * what was computed for a kind is ever returned for it.
+ * An entry is keyed by the kind, the path and the device,
+ * inode, size, mtime and ctime of the file. Any write or replacement of the
+ * file changes the ctime, which can't be set back, so a stale sum is never
+ * returned.
+ * The index is a small properties file in the app's files dir.
+ */
+class VerificationCache {
+    private static final String FILE = "verified.properties";
+    private static final int MAX_ENTRIES = 16;
+
+    static final String KIND_SHA256 = "sha256";
+    static final String KIND_TREE = "tree";
+
+    private static VerificationCache sInstance;
+
+    private final File mFile;
+    // kind and path -> key, sum, time verified
+    private final Properties mIndex = new Properties();
+
+    private VerificationCache(File file) {
+        mFile = file;
+        if (!file.exists()) return;
+        try (FileInputStream is = new FileInputStream(file)) {
+            mIndex.load(is);
+        } catch (IOException | IllegalArgumentException e) {
+            Logger.ex(e);
+            mIndex.clear();
+        }
+    }
+
+    static synchronized void init(File dir) {
+        if (sInstance == null) sInstance = new VerificationCache(new File(dir, FILE));
+    }
+
+    /**
+     * @return the cache, null if it wasn't initialized
+     */
+    static synchronized VerificationCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @return what identifies the current content of the file, null if it
+     *         can't be determined
+     */
+    static String getKey(File file) {
+        try {
+            final StructStat st = Os.stat(file.getPath());
+            return String.format(Locale.ENGLISH, "%x:%x:%d:%d.%09d:%d.%09d", st.st_dev,
+                    st.st_ino, st.st_size, st.st_mtim.tv_sec, st.st_mtim.tv_nsec,
+                    st.st_ctim.tv_sec, st.st_ctim.tv_nsec);
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+
+    private static String getName(File file, String kind) {
+        return kind + " " + file.getAbsolutePath();
+    }
+
+    /**
+     * @param key as returned by getKey() for the file
+     * @return the SHA-256 of the file, null if it isn't known for this key
+     */
+    String get(File file, String key) {
+        return get(file, KIND_SHA256, key);
+    }
+
+    /**
+     * @return the sum of the given kind, null if it isn't known for this key
+     */
+    synchronized String get(File file, String kind, String key) {
+        final String entry = mIndex.getProperty(getName(file, kind));
+        if (key == null || entry == null) return null;
+        final String[] parts = entry.split(" ");
+        return parts.length == 3 && parts[0].equals(key) ? parts[1] : null;
+    }
+
+    /**
+     * Records the SHA-256 of the file
+     * @param key as returned by getKey() before the file was hashed, nothing
+     *            is recorded if the file changed since
+     */
+    void put(File file, String key, String sum) {
+        put(file, KIND_SHA256, key, sum);
+    }
+
+    /**
+     * Records a sum of the given kind, only what was computed from the file
+     */
+    synchronized void put(File file, String kind, String key, String sum) {
+        if (key == null || sum == null || !key.equals(getKey(file))) return;
+        mIndex.setProperty(getName(file, kind),
+                key + " " + sum + " " + System.currentTimeMillis());
+        trim();
+        save();
+    }
+
+    /**
+     * Records the sum of a file that was verified on the way, like a download
+     */
+    void put(File file, String sum) {
+        put(file, getKey(file), sum);
+    }
+
+    private void trim() {
+        final List<String> names = new ArrayList<>(mIndex.stringPropertyNames());
+        for (String name : names) {
+            final String path = name.substring(name.indexOf(' ') + 1);
+            if (!new File(path).exists()) mIndex.remove(name);
+        }
+        while (mIndex.size() > MAX_ENTRIES) {
+            String oldest = null;
+            long oldestTime = Long.MAX_VALUE;
+            for (String name : mIndex.stringPropertyNames()) {
+                final String[] parts = mIndex.getProperty(name).split(" ");
+                long time = 0;
+                try {
+                    if (parts.length == 3) time = Long.parseLong(parts[2]);
+                } catch (NumberFormatException e) {
+                    // drop it first
+                }
+                if (time < oldestTime) {
+                    oldest = name;
+                    oldestTime = time;
+                }
+            }
+            mIndex.remove(oldest);
+        }
+    }
+
+    private void save() {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(tmp, false)) {
+            mIndex.store(os, null);
+            os.getFD().sync();
+        } catch (IOException e) {
+            Logger.ex(e);
+            return;
+        }
+        if (!tmp.renameTo(mFile)) Logger.i("Failed to rename " + tmp);
+    }
+}
@@ -22,6 +22,8 @@ package eu.chainfire.opendelta;
 public class Version implements Comparable<Version> {
 
     private final String version;
+    // parsed once, versions are compared a lot more often than created
+    private final int[] parts;
 
     public final String get() {
         return this.version;
@@ -33,20 +35,20 @@ public class Version implements Comparable<Version> {
         if(!version.matches("[0-9]+(\\.[0-9]+)*"))
             throw new IllegalArgumentException("Invalid version format");
         this.version = version;
+        String[] split = version.split("\\.");
+        this.parts = new int[split.length];
+        for(int i = 0; i < split.length; i++)
+            this.parts[i] = Integer.parseInt(split[i]);
     }
 
     @Override
     public int compareTo(Version that) {
         if(that == null)
             return 1;
-        String[] thisParts = this.get().split("\\.");
-        String[] thatParts = that.get().split("\\.");
-        int length = Math.max(thisParts.length, thatParts.length);
+        int length = Math.max(this.parts.length, that.parts.length);
         for(int i = 0; i < length; i++) {
-            int thisPart = i < thisParts.length ?
-                Integer.parseInt(thisParts[i]) : 0;
-            int thatPart = i < thatParts.length ?
-                Integer.parseInt(thatParts[i]) : 0;
+            int thisPart = i < this.parts.length ? this.parts[i] : 0;
+            int thatPart = i < that.parts.length ? that.parts[i] : 0;
             if(thisPart < thatPart)
                 return -1;
             if(thisPart > thatPart)
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyFloat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowStatFs;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs downloads against the FixtureServer, with the faults servers and
+ * connections really have
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DownloadTest {
+    private static final String HOST = "mirror.example.org";
+    private static final String PATH = "/device/build.zip";
+    private static final String URL = "https://" + HOST + PATH;
+    private static final int SIZE = 3 * 1024 * 1024;
+    // small enough to have four segments
+    private static final int SEGMENT_SIZE = SIZE / 4;
+    private static final int CHUNK_SIZE = SIZE / 8;
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    private File mRoot;
+    private FixtureServer mServer;
+    private UpdateService mService;
+    private File mPartFile;
+    private byte[] mData;
+    private String mSum;
+
+    @Before
+    public void setUp() throws Exception {
+        mRoot = mTemp.newFolder("fixtures");
+        mData = new byte[SIZE];
+        new Random(SIZE).nextBytes(mData);
+        final File build = new File(new File(mRoot, HOST), PATH);
+        build.getParentFile().mkdirs();
+        Files.write(build.toPath(), mData);
+        mSum = Download.digestToHexString(MessageDigest.getInstance("SHA-256").digest(mData));
+        mServer = new FixtureServer(mRoot);
+        HttpClient.setTransport(mServer);
+
+        // only the context, the notifications are not part of this
+        mService = spy(Robolectric.buildService(UpdateService.class).get());
+        doNothing().when(mService).setDownloadNotificationProgress(
+                anyFloat(), anyLong(), anyLong(), anyLong());
+        doReturn(null).when(mService).getSUMProgress(anyInt(), anyString());
+        ShadowStatFs.registerStats(Config.getInstance(mService).getPathBase(),
+                1 << 20, 1 << 20, 1 << 20);
+        mPartFile = new File(mTemp.getRoot(), "build.zip.part");
+    }
+
+    @Test
+    public void downloadsInOnePiece() throws Exception {
+        assertTrue(start());
+        assertDownloaded();
+        assertEquals(SIZE, mServer.getBytesServed());
+    }
+
+    @Test
+    public void resumesWhereTheSavedStateEnds() throws Exception {
+        savePartial(SIZE / 2);
+        assertTrue(start());
+        assertDownloaded();
+        assertEquals(SIZE - SIZE / 2, mServer.getBytesServed());
+    }
+
+    @Test
+    public void startsOverInOnePieceWhenRangesAreIgnored() throws Exception {
+        savePartial(SIZE / 2);
+        setFaults("ignore_range=true");
+        assertTrue(start());
+        assertDownloaded();
+    }
+
+    @Test
+    public void resumesAfterDroppedConnections() throws Exception {
+        setFaults("drop_after_bytes=" + (SIZE / 3 + 1));
+        assertTrue(start());
+        assertDownloaded();
+        // every attempt continues where the one before broke off
+        assertEquals(SIZE, mServer.getBytesServed());
+    }
+
+    @Test
+    public void keepsTheSavedStateWhenTheRangeTotalIsWrong() throws Exception {
+        savePartial(SIZE / 2);
+        setFaults("wrong_content_range=true");
+        assertTrue(start());
+        assertDownloaded();
+        // only the missing half, the saved state was not thrown away
+        assertEquals(SIZE - SIZE / 2, mServer.getBytesServed());
+    }
+
+    @Test
+    public void keepsTheOtherSegmentsWhenALaterOneFails() throws Exception {
+        setFaults("match_range=^bytes=" + (SIZE - SEGMENT_SIZE) + "-", "status=500");
+        assertFalse(start(newSegmentedDownload()));
+        final long downloaded = PartInfo.getDownloaded(mPartFile);
+        final long served = mServer.getBytesServed();
+
+        setFaults();
+        assertTrue(start(newSegmentedDownload()));
+        assertDownloaded();
+        // what the other segments got is not fetched again
+        assertEquals(SIZE - downloaded, mServer.getBytesServed() - served);
+    }
+
+    @Test
+    public void fetchesCorruptChunksAgain() throws Exception {
+        savePartial(SIZE / 2);
+        final byte[] partial = Files.readAllBytes(mPartFile.toPath());
+        partial[CHUNK_SIZE + 1] ^= 1;
+        Files.write(mPartFile.toPath(), partial);
+
+        final Download download = new Download(URL, mPartFile, mSum, mService);
+        download.setChunkManifest(ChunkManifest.parse(getChunkManifest()));
+        assertTrue(start(download));
+        assertDownloaded();
+        // the missing half and the corrupt chunk only
+        assertEquals(SIZE - SIZE / 2 + CHUNK_SIZE, mServer.getBytesServed());
+    }
+
+    private boolean start() throws Exception {
+        return start(new Download(URL, mPartFile, mSum, mService));
+    }
+
+    /**
+     * Runs the download, moving the clock along so retries don't wait
+     */
+    private boolean start(Download download) throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Boolean> result = executor.submit(download::start);
+            while (true) {
+                try {
+                    return result.get(10, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    ShadowSystemClock.advanceBy(Duration.ofSeconds(1));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Download newSegmentedDownload() {
+        final Download download = new Download(URL, mPartFile, mSum, mService);
+        download.setMinSegmentSize(SEGMENT_SIZE);
+        return download;
+    }
+
+    /**
+     * Leaves the start of the build in the .part file, like a download that
+     * was interrupted there
+     */
+    private void savePartial(int length) throws IOException {
+        Files.write(mPartFile.toPath(), Arrays.copyOf(mData, length));
+        final PartInfo info = PartInfo.createContinuous(mPartFile, URL, SIZE);
+        info.setValidator(getETag());
+        info.setDurable(new long[] { length });
+        info.save();
+    }
+
+    private String getChunkManifest() throws NoSuchAlgorithmException {
+        final StringBuilder sb = new StringBuilder().append(CHUNK_SIZE).append('\n');
+        for (int start = 0; start < SIZE; start += CHUNK_SIZE) {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(mData, start, Math.min(CHUNK_SIZE, SIZE - start));
+            sb.append(Download.digestToHexString(digest.digest())).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private String getETag() throws IOException {
+        final HttpURLConnection urlConnection = mServer.open(new URL(URL));
+        try {
+            urlConnection.setRequestMethod("HEAD");
+            return urlConnection.getHeaderField("ETag");
+        } finally {
+            urlConnection.disconnect();
+        }
+    }
+
+    private void setFaults(String... lines) throws IOException {
+        Files.write(new File(mRoot, "faults.properties").toPath(),
+                String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void assertDownloaded() throws IOException {
+        assertArrayEquals(mData, Files.readAllBytes(mPartFile.toPath()));
+        assertFalse(PartInfo.getFile(mPartFile).exists());
+    }
+}
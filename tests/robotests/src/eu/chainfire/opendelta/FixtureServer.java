@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2026 Yet Another AOSP Project
+ */
+/*
+ * This file is part of OpenDelta.
+ *
+ * OpenDelta is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenDelta is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenDelta. If not, see <http://www.gnu.org/licenses/>.
+ */
+package eu.chainfire.opendelta;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stand-in for the download and API servers, answering requests in process
+ * from a directory instead of the network. A request for
+ * https://host/path/file is answered with &lt;root&gt;/host/path/file, so the
+ * device json, history, builds, sums and changelogs are laid out like the
+ * servers they come from. Query strings are ignored.
+ * Range, If-Range and If-None-Match are handled like a server would.
+ * Faults are read from &lt;root&gt;/faults.properties on every request, so
+ * they can be changed while the app runs:
+ * <ul>
+ * <li>match: regex, faults only apply to urls it is found in</li>
+ * <li>match_range: regex, faults only apply to requests with a Range header
+ * it is found in</li>
+ * <li>latency_ms: delay before the response headers</li>
+ * <li>bytes_per_second: throughput of a response body</li>
+ * <li>drop_after_bytes: a response body breaks off after this much</li>
+ * <li>ignore_range: answer range requests with the whole file</li>
+ * <li>wrong_content_range: report a total one byte too large</li>
+ * <li>status: answer with this status code instead</li>
+ * </ul>
+ * Installed with HttpClient.setTransport().
+ */
+class FixtureServer implements Transport {
+    private static final String FAULTS = "faults.properties";
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final File mRoot;
+    private final AtomicLong mBytesServed = new AtomicLong();
+
+    FixtureServer(File root) {
+        mRoot = root;
+    }
+
+    /**
+     * @return bytes of fixtures sent in response bodies so far
+     */
+    long getBytesServed() {
+        return mBytesServed.get();
+    }
+
+    @Override
+    public HttpURLConnection open(URL url) {
+        return new FixtureConnection(url);
+    }
+
+    private static class Faults {
+        long latencyMs;
+        long bytesPerSecond;
+        long dropAfterBytes = -1;
+        boolean ignoreRange;
+        boolean wrongContentRange;
+        int status;
+    }
+
+    private Faults loadFaults(URL url, String range) {
+        final Faults faults = new Faults();
+        final File file = new File(mRoot, FAULTS);
+        if (!file.exists()) return faults;
+        final Properties props = new Properties();
+        try (FileInputStream is = new FileInputStream(file)) {
+            props.load(is);
+        } catch (IOException e) {
+            Logger.ex(e);
+            return faults;
+        }
+        final String match = props.getProperty("match");
+        if (match != null && !Pattern.compile(match).matcher(url.toString()).find())
+            return faults;
+        final String matchRange = props.getProperty("match_range");
+        if (matchRange != null && (range == null
+                || !Pattern.compile(matchRange).matcher(range).find()))
+            return faults;
+        try {
+            faults.latencyMs = Long.parseLong(props.getProperty("latency_ms", "0"));
+            faults.bytesPerSecond = Long.parseLong(props.getProperty("bytes_per_second", "0"));
+            faults.dropAfterBytes = Long.parseLong(props.getProperty("drop_after_bytes", "-1"));
+            faults.status = Integer.parseInt(props.getProperty("status", "0"));
+        } catch (NumberFormatException e) {
+            Logger.ex(e);
+        }
+        faults.ignoreRange = Boolean.parseBoolean(props.getProperty("ignore_range"));
+        faults.wrongContentRange = Boolean.parseBoolean(
+                props.getProperty("wrong_content_range"));
+        return faults;
+    }
+
+    /**
+     * @return the fixture for the url, null if it would be outside the root
+     */
+    private File resolve(URL url) throws IOException {
+        final File file = new File(new File(mRoot, url.getHost()), url.getPath());
+        final String root = mRoot.getCanonicalPath() + File.separator;
+        return file.getCanonicalPath().startsWith(root) ? file : null;
+    }
+
+    private static String httpDate(long time) {
+        final SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    private class FixtureConnection extends HttpURLConnection {
+        private final Map<String, List<String>> mHeaders =
+                new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private InputStream mBody;
+        private volatile boolean mDisconnected;
+
+        FixtureConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (connected) return;
+            // request properties can't be read once connected
+            final String range = getRequestProperty("Range");
+            final String ifRange = getRequestProperty("If-Range");
+            final String ifNoneMatch = getRequestProperty("If-None-Match");
+            final Faults faults = loadFaults(url, range);
+            sleep(faults.latencyMs);
+            respond(faults, range, ifRange, ifNoneMatch);
+            connected = true;
+            Logger.d("fixture: %s %s %d", method, url, responseCode);
+        }
+
+        private void respond(Faults faults, String range, String ifRange,
+                String ifNoneMatch) throws IOException {
+            if (faults.status > 0) {
+                setResponse(faults.status, null, 0, 0);
+                return;
+            }
+            final File file = resolve(url);
+            if (file == null || !file.isFile()) {
+                setResponse(HTTP_NOT_FOUND, null, 0, 0);
+                return;
+            }
+            final long total = file.length();
+            final String etag = "\"" + Long.toHexString(total) + "-"
+                    + Long.toHexString(file.lastModified()) + "\"";
+            final String lastModified = httpDate(file.lastModified());
+            addHeader("ETag", etag);
+            addHeader("Last-Modified", lastModified);
+            addHeader("Content-Type", file.getName().endsWith(".json")
+                    ? "application/json" : "application/octet-stream");
+            if (!faults.ignoreRange) addHeader("Accept-Ranges", "bytes");
+
+            if (etag.equals(ifNoneMatch)) {
+                setResponse(HTTP_NOT_MODIFIED, null, 0, 0);
+                return;
+            }
+            final Matcher matcher = range != null ? RANGE.matcher(range.trim()) : null;
+            final boolean rangeValid = ifRange == null || ifRange.equals(etag)
+                    || ifRange.equals(lastModified);
+            if (matcher == null || !matcher.matches() || !rangeValid || faults.ignoreRange) {
+                setResponse(HTTP_OK, file, 0, total);
+                mBody = throttle(mBody, faults);
+                return;
+            }
+            final long start = Long.parseLong(matcher.group(1));
+            final long end = matcher.group(2).isEmpty() ? total - 1
+                    : Math.min(total - 1, Long.parseLong(matcher.group(2)));
+            if (start > end) {
+                addHeader("Content-Range", "bytes */" + total);
+                setResponse(416, null, 0, 0);
+                return;
+            }
+            addHeader("Content-Range", "bytes " + start + "-" + end + "/"
+                    + (faults.wrongContentRange ? total + 1 : total));
+            setResponse(HTTP_PARTIAL, file, start, end + 1 - start);
+            mBody = throttle(mBody, faults);
+        }
+
+        private void setResponse(int code, File file, long start, long length)
+                throws IOException {
+            responseCode = code;
+            responseMessage = null;
+            if (file == null) {
+                final byte[] body = code >= 400
+                        ? (code + "\n").getBytes(StandardCharsets.UTF_8) : new byte[0];
+                addHeader("Content-Length", Integer.toString(body.length));
+                mBody = new ByteArrayInputStream(body);
+                return;
+            }
+            addHeader("Content-Length", Long.toString(length));
+            if ("HEAD".equals(method)) {
+                mBody = new ByteArrayInputStream(new byte[0]);
+                return;
+            }
+            final FileInputStream is = new FileInputStream(file);
+            is.getChannel().position(start);
+            mBody = new FilterInputStream(is) {
+                private long mLeft = length;
+
+                @Override
+                public int read() throws IOException {
+                    final byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (mLeft <= 0) return -1;
+                    final int r = super.read(b, off, (int) Math.min(len, mLeft));
+                    if (r > 0) {
+                        mLeft -= r;
+                        mBytesServed.addAndGet(r);
+                    }
+                    return r;
+                }
+            };
+        }
+
+        private InputStream throttle(InputStream is, Faults faults) {
+            if (faults.bytesPerSecond <= 0 && faults.dropAfterBytes < 0) return is;
+            return new FilterInputStream(is) {
+                private final long mStart = System.nanoTime();
+                private long mCount;
+
+                @Override
+                public int read() throws IOException {
+                    final byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (faults.dropAfterBytes >= 0) {
+                        if (mCount >= faults.dropAfterBytes)
+                            throw new SocketException("Connection reset by fixture");
+                        len = (int) Math.min(len, faults.dropAfterBytes - mCount);
+                    }
+                    final int r = super.read(b, off, len);
+                    if (r <= 0) return r;
+                    mCount += r;
+                    if (faults.bytesPerSecond > 0) {
+                        final long due = mCount * 1000L / faults.bytesPerSecond
+                                - (System.nanoTime() - mStart) / 1000000L;
+                        sleep(due);
+                    }
+                    return r;
+                }
+            };
+        }
+
+        private void sleep(long ms) throws IOException {
+            final long end = System.currentTimeMillis() + ms;
+            long left;
+            while ((left = end - System.currentTimeMillis()) > 0) {
+                if (mDisconnected) throw new SocketException("Socket closed");
+                try {
+                    Thread.sleep(Math.min(left, 100));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (mDisconnected) throw new SocketException("Socket closed");
+        }
+
+        private void addHeader(String name, String value) {
+            mHeaders.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            connect();
+            return responseCode;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            if (responseCode >= 400) throw new FileNotFoundException(url.toString());
+            return mBody;
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return connected && responseCode >= 400 ? mBody : null;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            try {
+                connect();
+            } catch (IOException e) {
+                return null;
+            }
+            final List<String> values = mHeaders.get(name);
+            return values != null ? values.get(values.size() - 1) : null;
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            try {
+                connect();
+            } catch (IOException e) {
+                return Collections.emptyMap();
+            }
+            return Collections.unmodifiableMap(mHeaders);
+        }
+
+        @Override
+        public void disconnect() {
+            mDisconnected = true;
+            try {
+                if (mBody != null) mBody.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+}